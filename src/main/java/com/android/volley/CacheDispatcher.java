@@ -49,6 +49,29 @@ public class CacheDispatcher extends Thread {
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
+    /** Initializes the cache once for every dispatcher sharing it, or null if unshared. */
+    private final CacheInitializer mInitializer;
+
+    /**
+     * Initializes a cache once, however many dispatchers share it. Dispatchers calling
+     * {@link #initialize()} while another one initializes the cache wait for it to finish.
+     */
+    static class CacheInitializer {
+        private final Cache mCache;
+        private boolean mInitialized;
+
+        CacheInitializer(Cache cache) {
+            mCache = cache;
+        }
+
+        synchronized void initialize() {
+            if (!mInitialized) {
+                if (mCache != null) mCache.initialize();
+                mInitialized = true;
+            }
+        }
+    }
+
     /**
      * Creates a new cache triage dispatcher thread.  You must call {@link #start()}
      * in order to begin processing.
@@ -60,10 +83,21 @@ public class CacheDispatcher extends Thread {
      */
     public CacheDispatcher(BlockingQueue<Request> cacheQueue, BlockingQueue<Request> networkQueue,
 						   Cache cache, ResponseDelivery delivery) {
+		this(cacheQueue, networkQueue, cache, delivery, null);
+	}
+
+    /**
+     * Creates a new cache triage dispatcher thread taking requests from the same queue as
+     * other dispatchers, which initialize the cache only once through the shared
+     * initializer.
+     */
+    CacheDispatcher(BlockingQueue<Request> cacheQueue, BlockingQueue<Request> networkQueue,
+            Cache cache, ResponseDelivery delivery, CacheInitializer initializer) {
 		mCache = cache;
 		mDelivery = delivery;
 		mCacheQueue = cacheQueue;
 		mNetworkQueue = networkQueue;
+		mInitializer = initializer;
 	}
 
     /**
@@ -81,7 +115,11 @@ public class CacheDispatcher extends Thread {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
         // Make a blocking call to initialize the cache.
-		if (mCache != null) mCache.initialize();
+		if (mInitializer != null) {
+			mInitializer.initialize();
+		} else if (mCache != null) {
+			mCache.initialize();
+		}
 
         while (true) {
             try {
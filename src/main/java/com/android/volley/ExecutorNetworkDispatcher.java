@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import com.android.volley.cache.Cache;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Network dispatcher that performs every request as a separate task on an
+ * {@link Executor} instead of on its own thread.
+ *
+ * <p>The dispatcher thread only takes requests off the queue, in priority order, and
+ * hands them to the executor, so the executor decides how many requests are performed
+ * at once. With one that starts a thread per task, such as
+ * {@link RequestExecutors#newPerRequestExecutor()}, a few slow endpoints no longer hold
+ * up every other request.</p>
+ */
+@SuppressWarnings("rawtypes")
+public class ExecutorNetworkDispatcher extends NetworkDispatcher {
+    /** The queue of requests to service. */
+    private final BlockingQueue<Request> mQueue;
+
+    /** Performs the requests taken from the queue. */
+    private final Executor mExecutor;
+
+    /** Used for telling us to die. */
+    private volatile boolean mQuit = false;
+
+    /**
+     * Creates a new executor dispatcher thread.  You must call {@link #start()}
+     * in order to begin processing.
+     *
+     * @param queue Queue of incoming requests for triage
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param executor Executor the requests are performed on
+     */
+    public ExecutorNetworkDispatcher(BlockingQueue<Request> queue,
+            Network network, Cache cache,
+            ResponseDelivery delivery, Executor executor) {
+        super(queue, network, cache, delivery);
+        mQueue = queue;
+        mExecutor = executor;
+    }
+
+    /**
+     * Forces this dispatcher to quit immediately. Requests already handed to the
+     * executor are still performed.
+     */
+    @Override
+    public void quit() {
+        mQuit = true;
+        super.quit();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            final Request request;
+            try {
+                // Take a request from the queue.
+                request = mQueue.take();
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (mQuit) return;
+                continue;
+            }
+
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        processRequest(request);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The executor is saturated or shut down. Perform the request here rather
+                // than drop it, which also stops taking requests until it is done.
+                processRequest(request);
+            }
+        }
+    }
+}
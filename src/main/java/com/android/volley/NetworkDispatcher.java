@@ -88,43 +88,57 @@ public class NetworkDispatcher extends Thread {
                 continue;
             }
 
-            try {
-                request.addMarker("network-queue-take");
-				mDelivery.postPreExecute(request);
-
-                // If the request was cancelled already,
-                // do not perform the network request.
-                if (request.isCanceled()) {
-					mDelivery.postCancel(request);
-					mDelivery.postFinish(request);
-					request.finish("network-discard-cancelled");
-					continue;
-                }
-
-                // Perform the network request.
-                NetworkResponse networkResponse = mNetwork.performRequest(request);
-                request.addMarker("network-http-complete");
-
-                // Parse the response here on the worker thread.
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
-
-                // Write to cache if applicable.
-				if (mCache != null && request.shouldCache() && response.cacheEntry != null) {
-					response.cacheEntry.expireTime = request.getCacheExpireTime();
-					mCache.put(request.getCacheKey(), response.cacheEntry);
-					request.addMarker("network-cache-written");
-				}
-
-                // Post the response back.
-                request.markDelivered();
-                mDelivery.postResponse(request, response);
-            } catch (VolleyError netroidError) {
-				mDelivery.postError(request, request.parseNetworkError(netroidError));
-            } catch (Exception e) {
-				VolleyLog.e(e, "Unhandled exception %s", e.toString());
-				mDelivery.postError(request, new VolleyError(e));
+            processRequest(request);
+        }
+    }
+
+    /**
+     * Performs a request taken from the queue and delivers its response or error.
+     * Never throws, so the caller can go on with the next request.
+     */
+    void processRequest(Request request) {
+        try {
+            request.addMarker("network-queue-take");
+			mDelivery.postPreExecute(request);
+
+            // If the request was cancelled already,
+            // do not perform the network request.
+            if (request.isCanceled()) {
+				mDelivery.postCancel(request);
+				mDelivery.postFinish(request);
+				request.finish("network-discard-cancelled");
+				return;
+            }
+
+            // Perform the network request.
+            NetworkResponse networkResponse = mNetwork.performRequest(request);
+            request.addMarker("network-http-complete");
+
+            // Parse the response here on the worker thread.
+            Response<?> response = request.parseNetworkResponse(networkResponse);
+            request.addMarker("network-parse-complete");
+
+            // Write to cache if applicable.
+			if (mCache != null && request.shouldCache() && response.cacheEntry != null) {
+				response.cacheEntry.expireTime = request.getCacheExpireTime();
+				response.cacheEntry.partition = request.getCachePartition();
+				mCache.put(request.getCacheKey(), response.cacheEntry);
+				request.addMarker("network-cache-written");
 			}
+
+            // Post the response back.
+            request.markDelivered();
+            mDelivery.postResponse(request, response);
+        } catch (VolleyError netroidError) {
+			mDelivery.postError(request, request.parseNetworkError(netroidError));
+        } catch (Exception e) {
+			VolleyLog.e(e, "Unhandled exception %s", e.toString());
+			mDelivery.postError(request, new VolleyError(e));
+		} finally {
+            // Let the next request to the same host go, without waiting for the delivery.
+            if (mQueue instanceof NetworkQueue) {
+                ((NetworkQueue) mQueue).release(request);
+            }
         }
     }
 
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.os.SystemClock;
+import com.android.volley.cache.Cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Network dispatchers whose number follows the load on the network queue.
+ *
+ * <p>The pool starts with its minimum number of dispatchers. Whenever a request is queued
+ * or taken, another dispatcher is started, up to the maximum, if more than
+ * {@code maxQueueDepth} requests are waiting or the request at the head of the queue has
+ * waited longer than {@code maxWaitMs}. While requests are waiting, a monitor thread also
+ * checks the head of the queue once it is due, so the pool grows when every dispatcher is
+ * busy with a slow request and nothing is queued or taken. A dispatcher that finds no
+ * request to perform for {@code keepAliveMs} exits, down to the minimum.</p>
+ *
+ * <p>Pass the pool to a {@link RequestQueue}, which starts and stops it. The pool size
+ * and how often it changed can be read at any time, or followed with a
+ * {@link Listener}.</p>
+ */
+@SuppressWarnings("rawtypes")
+public class NetworkDispatcherPool {
+
+    /** Default number of waiting requests above which the pool grows. */
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 2;
+
+    /** Default time in milliseconds a request may wait before the pool grows. */
+    public static final long DEFAULT_MAX_WAIT_MS = 100;
+
+    /** Default time in milliseconds an idle dispatcher is kept. */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 30 * 1000;
+
+    /** Receives pool size changes. */
+    public interface Listener {
+        /**
+         * Called with the new number of dispatchers whenever it changes, on the thread that
+         * changed it. Must not block or call back into the pool.
+         */
+        void onPoolSizeChanged(int size);
+    }
+
+    private final int mMinSize;
+    private final int mMaxSize;
+    private final int mMaxQueueDepth;
+    private final long mMaxWaitMs;
+    private final long mKeepAliveMs;
+
+    private volatile Listener mListener;
+
+    /** The running dispatchers. Guarded by this. */
+    private final List<PooledDispatcher> mDispatchers = new ArrayList<PooledDispatcher>();
+
+    /** Number of running dispatchers, readable without the lock. */
+    private volatile int mSize;
+
+    /** The queue the dispatchers take requests from. */
+    private volatile NetworkQueue mQueue;
+
+    /** Grows the pool when requests wait too long; null while stopped. */
+    private volatile GrowthMonitor mMonitor;
+
+    /** What the dispatchers are started with. Guarded by this. */
+    private Network mNetwork;
+    private Cache mCache;
+    private ResponseDelivery mDelivery;
+
+    /** Metrics. Guarded by this. */
+    private int mLargestSize;
+    private long mGrowCount;
+    private long mShrinkCount;
+
+    /**
+     * @param minSize Number of dispatchers always kept running; at least one.
+     * @param maxSize Maximum number of dispatchers.
+     * @param maxQueueDepth Number of waiting requests above which another dispatcher is
+     *     started.
+     * @param maxWaitMs Time a request may wait at the head of the queue before another
+     *     dispatcher is started.
+     * @param keepAliveMs Time a dispatcher above the minimum may stay idle before it exits.
+     */
+    public NetworkDispatcherPool(int minSize, int maxSize, int maxQueueDepth, long maxWaitMs,
+            long keepAliveMs) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid pool bounds: min=" + minSize
+                    + " max=" + maxSize);
+        }
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mMaxQueueDepth = maxQueueDepth;
+        mMaxWaitMs = maxWaitMs;
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Creates a pool with the default thresholds and keep-alive time.
+     * @param minSize Number of dispatchers always kept running; at least one.
+     * @param maxSize Maximum number of dispatchers.
+     */
+    public NetworkDispatcherPool(int minSize, int maxSize) {
+        this(minSize, maxSize, DEFAULT_MAX_QUEUE_DEPTH, DEFAULT_MAX_WAIT_MS,
+                DEFAULT_KEEP_ALIVE_MS);
+    }
+
+    /**
+     * Sets the listener notified of pool size changes, or null for none.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /** Returns the minimum number of dispatchers. */
+    public int getMinSize() {
+        return mMinSize;
+    }
+
+    /** Returns the maximum number of dispatchers. */
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /** Returns the number of running dispatchers. */
+    public int getPoolSize() {
+        return mSize;
+    }
+
+    /** Returns the largest number of dispatchers that ran at once. */
+    public synchronized int getLargestPoolSize() {
+        return mLargestSize;
+    }
+
+    /** Returns how many dispatchers were started above the minimum because of load. */
+    public synchronized long getGrowCount() {
+        return mGrowCount;
+    }
+
+    /** Returns how many dispatchers exited after being idle. */
+    public synchronized long getShrinkCount() {
+        return mShrinkCount;
+    }
+
+    /**
+     * Starts the minimum number of dispatchers on the given queue, stopping any that are
+     * running.
+     */
+    synchronized void start(NetworkQueue queue, Network network, Cache cache,
+            ResponseDelivery delivery) {
+        stop();
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        while (mDispatchers.size() < mMinSize) {
+            addDispatcher();
+        }
+        mMonitor = new GrowthMonitor();
+        mMonitor.start();
+        onSizeChanged();
+    }
+
+    /**
+     * Stops every dispatcher.
+     */
+    synchronized void stop() {
+        if (mMonitor != null) {
+            mMonitor.quit();
+            mMonitor = null;
+        }
+        if (mDispatchers.isEmpty()) {
+            return;
+        }
+        for (PooledDispatcher dispatcher : mDispatchers) {
+            dispatcher.quit();
+        }
+        mDispatchers.clear();
+        onSizeChanged();
+    }
+
+    /**
+     * Called after a request was added to the network queue. Grows the pool if the queue is
+     * backed up.
+     */
+    void onRequestQueued() {
+        if (mSize > 0 && mSize < mMaxSize && isBackedUp()) {
+            grow();
+        }
+        GrowthMonitor monitor = mMonitor;
+        if (monitor != null) {
+            monitor.onRequestQueued();
+        }
+    }
+
+    /**
+     * Whether requests wait longer or in larger numbers than the thresholds allow. Requests
+     * held back by their host's limit don't count; another dispatcher couldn't take them.
+     */
+    private boolean isBackedUp() {
+        NetworkQueue queue = mQueue;
+        int depth = queue.takeableSize();
+        if (depth == 0) {
+            return false;
+        }
+        if (depth > mMaxQueueDepth) {
+            return true;
+        }
+        Request head = queue.peek();
+        return head != null
+                && SystemClock.elapsedRealtime() - head.getNetworkQueueTime() > mMaxWaitMs;
+    }
+
+    private synchronized void grow() {
+        if (mDispatchers.isEmpty() || mDispatchers.size() >= mMaxSize) {
+            return;
+        }
+        addDispatcher();
+        mGrowCount++;
+        onSizeChanged();
+    }
+
+    /**
+     * Removes an idle dispatcher from the pool unless the pool is at its minimum size.
+     * @return Whether the dispatcher should exit.
+     */
+    private synchronized boolean retire(PooledDispatcher dispatcher) {
+        if (!mDispatchers.contains(dispatcher)) {
+            // Already stopped.
+            return true;
+        }
+        if (mDispatchers.size() <= mMinSize) {
+            return false;
+        }
+        mDispatchers.remove(dispatcher);
+        mShrinkCount++;
+        onSizeChanged();
+        return true;
+    }
+
+    /** Must be called with the lock held. */
+    private void addDispatcher() {
+        PooledDispatcher dispatcher = new PooledDispatcher(mQueue, mNetwork, mCache, mDelivery);
+        mDispatchers.add(dispatcher);
+        dispatcher.start();
+    }
+
+    /** Must be called with the lock held. */
+    private void onSizeChanged() {
+        mSize = mDispatchers.size();
+        mLargestSize = Math.max(mLargestSize, mSize);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onPoolSizeChanged(mSize);
+        }
+    }
+
+    /**
+     * Grows the pool if the request at the head of the queue has waited too long.
+     * @return Milliseconds until the head should be checked again, or -1 if no request is
+     *     waiting or the pool can't grow.
+     */
+    private long checkWaitTime() {
+        NetworkQueue queue = mQueue;
+        if (queue == null || mSize == 0 || mSize >= mMaxSize) {
+            return -1;
+        }
+        Request head = queue.peek();
+        if (head == null) {
+            return -1;
+        }
+        long waited = SystemClock.elapsedRealtime() - head.getNetworkQueueTime();
+        if (waited > mMaxWaitMs) {
+            grow();
+            // See whether the new dispatcher was enough.
+            return Math.max(1, mMaxWaitMs);
+        }
+        return mMaxWaitMs - waited + 1;
+    }
+
+    /**
+     * Checks the head of the queue when it is due to have waited {@code maxWaitMs}, and
+     * sleeps until the next request is queued while none is waiting.
+     */
+    private class GrowthMonitor extends Thread {
+        /** Used for telling us to die. */
+        private volatile boolean mQuit = false;
+
+        /** Whether the monitor waits for a request to be queued. Guarded by this. */
+        private boolean mIdle;
+
+        GrowthMonitor() {
+            super("volley-pool-monitor");
+            setDaemon(true);
+        }
+
+        void quit() {
+            mQuit = true;
+            interrupt();
+        }
+
+        synchronized void onRequestQueued() {
+            if (mIdle) {
+                mIdle = false;
+                notify();
+            }
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (!mQuit) {
+                long delay = checkWaitTime();
+                try {
+                    synchronized (this) {
+                        if (delay > 0) {
+                            wait(delay);
+                            continue;
+                        }
+                        mIdle = true;
+                        // A request queued before mIdle was set did not wake us.
+                        while (mIdle && !mQuit && checkWaitTime() < 0) {
+                            wait();
+                        }
+                        mIdle = false;
+                    }
+                } catch (InterruptedException e) {
+                    // We may have been interrupted because it was time to quit.
+                }
+            }
+        }
+    }
+
+    /** A dispatcher that leaves the pool after being idle for the keep-alive time. */
+    private class PooledDispatcher extends NetworkDispatcher {
+        private final BlockingQueue<Request> mQueue;
+
+        /** Used for telling us to die. */
+        private volatile boolean mQuit = false;
+
+        PooledDispatcher(BlockingQueue<Request> queue, Network network, Cache cache,
+                ResponseDelivery delivery) {
+            super(queue, network, cache, delivery);
+            mQueue = queue;
+        }
+
+        @Override
+        public void quit() {
+            mQuit = true;
+            super.quit();
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Request request;
+            while (true) {
+                try {
+                    // Take a request from the queue, or give up after the keep-alive time.
+                    request = mQueue.poll(mKeepAliveMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // We may have been interrupted because it was time to quit.
+                    if (mQuit) return;
+                    continue;
+                }
+
+                if (request == null) {
+                    if (retire(this)) return;
+                    continue;
+                }
+
+                // Requests left behind may need another dispatcher while this one is busy.
+                onRequestQueued();
+                processRequest(request);
+            }
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of requests going out to the network, which can limit and share the network
+ * dispatchers between hosts.
+ *
+ * <p>By default requests are taken by priority, then in the order they were added, like
+ * from a {@link java.util.concurrent.PriorityBlockingQueue}. Once host scheduling is
+ * enabled by any of the setters, requests are kept in one queue per host, identified by
+ * the authority of the request URL. A host with as many requests in flight as its limit
+ * is skipped until one of them is released, and hosts with waiting requests of the same
+ * priority take turns, each being served up to its weight in requests per turn.</p>
+ *
+ * <p>Requests taken while host scheduling is enabled count as in flight until they are
+ * passed to {@link #release(Request)}, which the network dispatcher does once it is done
+ * with them. Requests already waiting when host scheduling is enabled are sorted into
+ * their hosts' queues.</p>
+ */
+@SuppressWarnings("rawtypes")
+class NetworkQueue extends AbstractQueue<Request> implements BlockingQueue<Request> {
+
+    /** Requests waiting for, or in flight to, one host. */
+    private static class HostQueue {
+        final String host;
+        final PriorityQueue<Request> waiting = new PriorityQueue<Request>();
+        int inFlight;
+        /** Requests served in the current turn. */
+        int served;
+
+        HostQueue(String host) {
+            this.host = host;
+        }
+    }
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /** Hosts with waiting or in flight requests, in the order they take turns. */
+    private final List<HostQueue> mHosts = new ArrayList<HostQueue>();
+    private final Map<String, HostQueue> mHostsByName = new HashMap<String, HostQueue>();
+
+    /** Index in {@link #mHosts}, modulo its size, of the host whose turn it is. */
+    private int mTurn;
+
+    /** Requests taken and not released yet, and their hosts. */
+    private final Map<Request, HostQueue> mInFlight = new HashMap<Request, HostQueue>();
+
+    /** Number of waiting requests. */
+    private int mSize;
+
+    /** Whether requests are queued and limited by host. */
+    private boolean mHostAware;
+
+    private int mDefaultMaxInFlight = Integer.MAX_VALUE;
+    private final Map<String, Integer> mMaxInFlight = new HashMap<String, Integer>();
+    private final Map<String, Integer> mWeights = new HashMap<String, Integer>();
+
+    /**
+     * Sets how many requests to a host without a limit of their own may be in flight at
+     * once, and enables host scheduling.
+     */
+    public void setMaxRequestsPerHost(int maxRequests) {
+        checkPositive(maxRequests);
+        mLock.lock();
+        try {
+            enableHostScheduling();
+            mDefaultMaxInFlight = maxRequests;
+            mNotEmpty.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many requests to the given host may be in flight at once, and enables host
+     * scheduling.
+     */
+    public void setMaxRequestsPerHost(String host, int maxRequests) {
+        checkPositive(maxRequests);
+        mLock.lock();
+        try {
+            enableHostScheduling();
+            mMaxInFlight.put(host.toLowerCase(Locale.US), maxRequests);
+            mNotEmpty.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many requests the given host is served per turn, one by default, and
+     * enables host scheduling.
+     */
+    public void setHostWeight(String host, int weight) {
+        checkPositive(weight);
+        mLock.lock();
+        try {
+            enableHostScheduling();
+            mWeights.put(host.toLowerCase(Locale.US), weight);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Releases the slot a request taken from this queue held with its host. Does nothing
+     * for other requests.
+     */
+    public void release(Request request) {
+        mLock.lock();
+        try {
+            HostQueue host = mInFlight.remove(request);
+            if (host != null) {
+                host.inFlight--;
+                removeIfIdle(host);
+                mNotEmpty.signal();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Request request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        mLock.lock();
+        try {
+            hostQueueOf(request).waiting.offer(request);
+            mSize++;
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Request request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Request request;
+            while ((request = dequeue()) == null) {
+                mNotEmpty.await();
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Request request;
+            while ((request = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request poll() {
+        mLock.lock();
+        try {
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the request that would be taken next, or null if no request may be taken.
+     */
+    @Override
+    public Request peek() {
+        mLock.lock();
+        try {
+            HostQueue host = nextHost();
+            return host != null ? host.waiting.peek() : null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of waiting requests, including those held back by host limits.
+     */
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of waiting requests that could be taken right now, leaving out
+     * those held back by host limits.
+     */
+    public int takeableSize() {
+        mLock.lock();
+        try {
+            if (!mHostAware) {
+                return mSize;
+            }
+            int count = 0;
+            for (HostQueue host : mHosts) {
+                int slots = maxInFlightOf(host) - host.inFlight;
+                if (slots > 0) {
+                    count += Math.min(slots, host.waiting.size());
+                }
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> collection, int maxElements) {
+        if (collection == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int count = 0;
+            Request request;
+            while (count < maxElements && (request = dequeue()) != null) {
+                collection.add(request);
+                count++;
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            for (HostQueue host : mHosts) {
+                if (host.waiting.remove(o)) {
+                    mSize--;
+                    removeIfIdle(host);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        mLock.lock();
+        try {
+            for (HostQueue host : new ArrayList<HostQueue>(mHosts)) {
+                host.waiting.clear();
+                removeIfIdle(host);
+            }
+            mSize = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the waiting requests, in no particular order.
+     */
+    @Override
+    public Iterator<Request> iterator() {
+        mLock.lock();
+        try {
+            List<Request> requests = new ArrayList<Request>(mSize);
+            for (HostQueue host : mHosts) {
+                requests.addAll(host.waiting);
+            }
+            return Collections.unmodifiableList(requests).iterator();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Turns on host scheduling, moving the requests waiting so far into the queues of
+     * their hosts. Must be called with the lock held.
+     */
+    private void enableHostScheduling() {
+        if (mHostAware) {
+            return;
+        }
+        mHostAware = true;
+        // Until now every request was queued under the empty host name and none was
+        // counted as in flight.
+        HostQueue all = mHostsByName.remove("");
+        if (all == null) {
+            return;
+        }
+        mHosts.remove(all);
+        mTurn = 0;
+        for (Request request : all.waiting) {
+            hostQueueOf(request).waiting.offer(request);
+        }
+    }
+
+    /**
+     * Returns the queue a request waits in, creating it if needed. Must be called with the
+     * lock held.
+     */
+    private HostQueue hostQueueOf(Request request) {
+        String name = mHostAware ? hostOf(request.getUrl()) : "";
+        HostQueue host = mHostsByName.get(name);
+        if (host == null) {
+            host = new HostQueue(name);
+            mHostsByName.put(name, host);
+            mHosts.add(host);
+        }
+        return host;
+    }
+
+    /**
+     * Takes the next request, or returns null if no request may be taken. Must be called
+     * with the lock held.
+     */
+    private Request dequeue() {
+        HostQueue host = nextHost();
+        if (host == null) {
+            return null;
+        }
+        Request request = host.waiting.poll();
+        mSize--;
+        if (mHostAware) {
+            host.inFlight++;
+            mInFlight.put(request, host);
+        }
+        int index = mHosts.indexOf(host);
+        if (++host.served >= weightOf(host)) {
+            host.served = 0;
+            mTurn = index + 1;
+        } else {
+            mTurn = index;
+        }
+        removeIfIdle(host);
+        return request;
+    }
+
+    /**
+     * Returns the host to serve next: the one with the most urgent request among those
+     * below their limit, the one whose turn comes first on a tie. Must be called with the
+     * lock held.
+     */
+    private HostQueue nextHost() {
+        HostQueue best = null;
+        int count = mHosts.size();
+        for (int i = 0; i < count; i++) {
+            HostQueue host = mHosts.get((mTurn + i) % count);
+            Request head = host.waiting.peek();
+            if (head == null || host.inFlight >= maxInFlightOf(host)) {
+                continue;
+            }
+            if (best == null || head.getPriority().ordinal()
+                    > best.waiting.peek().getPriority().ordinal()) {
+                best = host;
+            }
+        }
+        return best;
+    }
+
+    /** Forgets a host without requests. Must be called with the lock held. */
+    private void removeIfIdle(HostQueue host) {
+        if (!host.waiting.isEmpty() || host.inFlight > 0) {
+            return;
+        }
+        int index = mHosts.indexOf(host);
+        mHosts.remove(index);
+        mHostsByName.remove(host.host);
+        if (index < mTurn) {
+            mTurn--;
+        }
+    }
+
+    private int maxInFlightOf(HostQueue host) {
+        Integer max = mMaxInFlight.get(host.host);
+        return max != null ? max : mDefaultMaxInFlight;
+    }
+
+    private int weightOf(HostQueue host) {
+        Integer weight = mWeights.get(host.host);
+        return weight != null ? weight : 1;
+    }
+
+    private static void checkPositive(int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("Must be at least 1: " + value);
+        }
+    }
+
+    /**
+     * Returns the lower case authority of a URL, such as {@code "example.com:8080"}, or an
+     * empty string if it has none.
+     */
+    static String hostOf(String url) {
+        if (url == null) {
+            return "";
+        }
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+            end++;
+        }
+        int userInfo = url.lastIndexOf('@', end - 1);
+        if (userInfo >= start) {
+            start = userInfo + 1;
+        }
+        return url.substring(start, end).toLowerCase(Locale.US);
+    }
+}
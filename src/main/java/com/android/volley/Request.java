@@ -103,6 +103,9 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** A cheap variant of request tracing used to dump slow requests. */
     private long mRequestBirthTime = 0;
 
+    /** When this request was last added to the network queue, for {@link NetworkDispatcherPool}. */
+    private long mNetworkQueueTime;
+
     /** Threshold at which we should log the request (even when debug logging is not enabled). */
     private static final long SLOW_REQUEST_THRESHOLD_MS = 3000;
 
@@ -115,6 +118,9 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 	/** What time the cache is expired, in milliSeconds. */
 	private long mCacheExpireTime;
 
+	/** Which cache partition the response is stored in, null for none. */
+	private String mCachePartition;
+
     /** An opaque token tagging this request; used for bulk cancellation. */
     private Object mTag;
 
@@ -249,6 +255,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mSequence;
     }
 
+    /**
+     * Sets when this request was added to the network queue.  Used by {@link RequestQueue}.
+     */
+    final void setNetworkQueueTime(long time) {
+        mNetworkQueueTime = time;
+    }
+
+    /**
+     * Returns when this request was added to the network queue, in
+     * {@link SystemClock#elapsedRealtime()} milliseconds.
+     */
+    final long getNetworkQueueTime() {
+        return mNetworkQueueTime;
+    }
+
     /**
      * Returns the URL of this request.
      */
@@ -311,6 +332,24 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 		return this;
 	}
 
+	public String getCachePartition() {
+		return mCachePartition;
+	}
+
+	/**
+	 * Set which partition of the cache the response is stored in. A
+	 * {@link com.android.volley.cache.DiskCache} gives every partition set up with
+	 * {@link com.android.volley.cache.DiskCache#setPartitionQuota(String, long)}
+	 * its own quota, so for example a burst of images can't evict API responses.
+	 * For example :
+	 * Request.setCachePartition("images");
+	 * @param partition the partition name, null for none
+	 */
+	public Request<T> setCachePartition(String partition) {
+		this.mCachePartition = partition;
+		return this;
+	}
+
 	/**
      * Mark this request as canceled.  No callback will be delivered.
      */
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for performing network requests with {@link ExecutorNetworkDispatcher}.
+ */
+public final class RequestExecutors {
+
+    private RequestExecutors() {
+    }
+
+    /**
+     * Returns an executor that performs every request on a thread of its own.
+     *
+     * <p>On runtimes with virtual threads (Java 21 and later) each task gets a new virtual
+     * thread. Elsewhere, including Android, tasks run on a cached pool of background
+     * priority daemon threads, which grows with the number of requests in flight and
+     * retires threads that were idle for a minute.</p>
+     */
+    public static ExecutorService newPerRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            // No virtual threads on this runtime.
+        } catch (Exception e) {
+            VolleyLog.d("Virtual threads unavailable: %s", e.toString());
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread("volley-network-" + mCount.incrementAndGet()) {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                };
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -18,10 +18,14 @@ package com.android.volley;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import com.android.volley.cache.Cache;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A request dispatch queue with a thread pool of dispatchers.
@@ -42,27 +46,89 @@ public class RequestQueue {
      * <ul>
      *     <li>containsKey(cacheKey) indicates that there is a request in flight for the given cache
      *          key.</li>
-     *     <li>get(cacheKey) returns waiting requests for the given cache key. The in flight request
-     *          is <em>not</em> contained in that list. Is null if no requests are staged.</li>
+     *     <li>get(cacheKey) returns the requests waiting for the given cache key. The in flight
+     *          request is <em>not</em> one of them.</li>
      * </ul>
      */
-    private final Map<String, Queue<Request>> mWaitingRequests =
-            new HashMap<String, Queue<Request>>();
+    private final ConcurrentHashMap<String, WaitingRequests> mWaitingRequests =
+            new ConcurrentHashMap<String, WaitingRequests>();
 
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
      * will be in this set if it is waiting in any queue or currently being processed by
      * any dispatcher.
      */
-    private final Set<Request> mCurrentRequests = new HashSet<Request>();
+    private final ConcurrentHashMap<Request, Boolean> mCurrentRequests =
+            new ConcurrentHashMap<Request, Boolean>();
+
+    /**
+     * Lock-free list of the requests waiting for a request in flight. Once closed, no more
+     * requests can be added.
+     */
+    private static class WaitingRequests {
+        private static class Node {
+            final Request request;
+            final Node next;
+
+            Node(Request request, Node next) {
+                this.request = request;
+                this.next = next;
+            }
+        }
+
+        /** Marks a closed list. */
+        private static final Node CLOSED = new Node(null, null);
+
+        /** The most recently added request, or null if there is none. */
+        private final AtomicReference<Node> mHead = new AtomicReference<Node>();
+
+        /**
+         * Adds a waiting request.
+         * @return Whether it was added; false if the list is closed.
+         */
+        boolean add(Request request) {
+            while (true) {
+                Node head = mHead.get();
+                if (head == CLOSED) {
+                    return false;
+                }
+                if (mHead.compareAndSet(head, new Node(request, head))) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Closes the list and returns the requests added to it, in the order they were added.
+         */
+        List<Request> close() {
+            ArrayList<Request> requests = new ArrayList<Request>();
+            for (Node node = mHead.getAndSet(CLOSED); node != null; node = node.next) {
+                requests.add(node.request);
+            }
+            Collections.reverse(requests);
+            return requests;
+        }
+    }
 
     /** The cache triage queue. */
     private final PriorityBlockingQueue<Request> mCacheQueue =
         new PriorityBlockingQueue<Request>();
 
     /** The queue of requests that are actually going out to the network. */
-    private final PriorityBlockingQueue<Request> mNetworkQueue =
-        new PriorityBlockingQueue<Request>();
+    private final NetworkQueue mNetworkQueue =
+        new NetworkQueue() {
+            @Override
+            public boolean offer(Request request) {
+                if (mDispatcherPool == null) {
+                    return super.offer(request);
+                }
+                request.setNetworkQueueTime(SystemClock.elapsedRealtime());
+                boolean added = super.offer(request);
+                mDispatcherPool.onRequestQueued();
+                return added;
+            }
+        };
 
     /** Number of network request dispatcher threads to start. */
     public static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
@@ -79,8 +145,17 @@ public class RequestQueue {
     /** The network dispatchers. */
     private NetworkDispatcher[] mDispatchers;
 
-    /** The cache dispatcher. */
-    private CacheDispatcher mCacheDispatcher;
+    /** Executor performing network requests, or null to perform them on the dispatchers. */
+    private final Executor mNetworkExecutor;
+
+    /** Pool of network dispatchers sized by load, or null for a fixed number of them. */
+    private final NetworkDispatcherPool mDispatcherPool;
+
+    /** The cache dispatchers. */
+    private CacheDispatcher[] mCacheDispatchers = new CacheDispatcher[0];
+
+    /** Number of cache dispatchers to start. */
+    private volatile int mCacheDispatcherCount = 1;
 
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
@@ -91,11 +166,78 @@ public class RequestQueue {
      * @param cache A Cache to use for persisting responses to disk
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize, ResponseDelivery delivery) {
+        this(cache, network, threadPoolSize, null, null, delivery);
+    }
+
+    /**
+     * Creates a queue performing each network request as a task on the given executor
+     * instead of on a fixed number of dispatcher threads, so the number of requests in
+     * flight is up to the executor. Tasks are handed to the executor in priority order,
+     * but a busy executor may not run them in that order. Processing will not begin until
+     * {@link #start()} is called. The executor is not shut down by {@link #stop()}.
+     *
+     * @param network A Network interface for performing HTTP requests
+     * @param networkExecutor Executor to perform network requests on, such as
+     *     {@link RequestExecutors#newPerRequestExecutor()}
+     * @param delivery A Delivery interface for posting responses and errors
+     * @param cache A Cache to use for persisting responses to disk
+     */
+    public RequestQueue(Cache cache, Network network, Executor networkExecutor,
+            ResponseDelivery delivery) {
+        this(cache, network, 1, networkExecutor, null, delivery);
+    }
+
+    /**
+     * Creates a queue performing each network request as a task on the given executor.
+     * Processing will not begin until {@link #start()} is called.
+     *
+     * @param network A Network interface for performing HTTP requests
+     * @param networkExecutor Executor to perform network requests on
+     * @param cache A Cache to use for persisting responses to disk
+     */
+    public RequestQueue(Cache cache, Network network, Executor networkExecutor) {
+        this(cache, network, networkExecutor,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+    }
+
+    /**
+     * Creates a queue whose number of network dispatcher threads grows and shrinks with
+     * the load, within the bounds of the given pool. Processing will not begin until
+     * {@link #start()} is called.
+     *
+     * @param network A Network interface for performing HTTP requests
+     * @param dispatcherPool Pool sizing the network dispatchers
+     * @param delivery A Delivery interface for posting responses and errors
+     * @param cache A Cache to use for persisting responses to disk
+     */
+    public RequestQueue(Cache cache, Network network, NetworkDispatcherPool dispatcherPool,
+            ResponseDelivery delivery) {
+        this(cache, network, 0, null, dispatcherPool, delivery);
+    }
+
+    /**
+     * Creates a queue whose number of network dispatcher threads grows and shrinks with
+     * the load. Processing will not begin until {@link #start()} is called.
+     *
+     * @param network A Network interface for performing HTTP requests
+     * @param dispatcherPool Pool sizing the network dispatchers
+     * @param cache A Cache to use for persisting responses to disk
+     */
+    public RequestQueue(Cache cache, Network network, NetworkDispatcherPool dispatcherPool) {
+        this(cache, network, dispatcherPool,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+    }
+
+    private RequestQueue(Cache cache, Network network, int threadPoolSize,
+            Executor networkExecutor, NetworkDispatcherPool dispatcherPool,
+            ResponseDelivery delivery) {
 		mCache = cache;
 		mNetwork = network;
 		mDelivery = delivery;
 		mNetwork.setDelivery(delivery);
 		mDispatchers = new NetworkDispatcher[threadPoolSize];
+		mNetworkExecutor = networkExecutor;
+		mDispatcherPool = dispatcherPool;
     }
 
     /**
@@ -125,9 +267,27 @@ public class RequestQueue {
      */
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
-        // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
-        mCacheDispatcher.start();
+        // Create the cache dispatchers and start them, initializing the cache only once.
+        CacheDispatcher.CacheInitializer initializer = new CacheDispatcher.CacheInitializer(mCache);
+        mCacheDispatchers = new CacheDispatcher[mCacheDispatcherCount];
+        for (int i = 0; i < mCacheDispatchers.length; i++) {
+            mCacheDispatchers[i] = new CacheDispatcher(
+                    mCacheQueue, mNetworkQueue, mCache, mDelivery, initializer);
+            mCacheDispatchers[i].start();
+        }
+
+        if (mDispatcherPool != null) {
+            mDispatcherPool.start(mNetworkQueue, mNetwork, mCache, mDelivery);
+            return;
+        }
+
+        // In executor mode a single dispatcher hands every request to the executor.
+        if (mNetworkExecutor != null) {
+            mDispatchers[0] = new ExecutorNetworkDispatcher(
+                    mNetworkQueue, mNetwork, mCache, mDelivery, mNetworkExecutor);
+            mDispatchers[0].start();
+            return;
+        }
 
         // Create network dispatchers (and corresponding threads) up to the pool size.
         for (int i = 0; i < mDispatchers.length; i++) {
@@ -142,12 +302,15 @@ public class RequestQueue {
      * Stops the cache and network dispatchers.
      */
     public void stop() {
-        if (mCacheDispatcher != null) {
-            mCacheDispatcher.quit();
+        for (CacheDispatcher cacheDispatcher : mCacheDispatchers) {
+            cacheDispatcher.quit();
         }
 		for (NetworkDispatcher mDispatcher : mDispatchers) {
 			if (mDispatcher != null) mDispatcher.quit();
 		}
+		if (mDispatcherPool != null) {
+			mDispatcherPool.stop();
+		}
     }
 
     /**
@@ -158,10 +321,61 @@ public class RequestQueue {
     }
 
 	/**
-	 * Gets the thread pool size.
+	 * Gets the thread pool size. A queue with a {@link NetworkDispatcherPool} returns its
+	 * maximum size, and one performing requests on an executor has no fixed limit and
+	 * returns {@link Integer#MAX_VALUE}.
 	 */
 	public int getThreadPoolSize() {
-		return mDispatchers.length;
+		if (mDispatcherPool != null) {
+			return mDispatcherPool.getMaxSize();
+		}
+		return mNetworkExecutor != null ? Integer.MAX_VALUE : mDispatchers.length;
+	}
+
+	/**
+	 * Sets how many cache dispatcher threads take requests from the cache queue; one by
+	 * default. Cache reads and response parsing for cache hits run on these threads, so
+	 * more of them serve more cache hits at once, but hits may then be delivered out of
+	 * priority order. Takes effect the next time {@link #start()} is called.
+	 */
+	public void setCacheDispatcherCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("Invalid cache dispatcher count: " + count);
+		}
+		mCacheDispatcherCount = count;
+	}
+
+	/**
+	 * Limits how many requests to any one host may be performed at once. Hosts are
+	 * identified by the authority of the request URL, such as {@code "example.com:8080"}.
+	 * Setting any host limit or weight also makes hosts with waiting requests of the same
+	 * priority take turns, so a host flooded with requests cannot starve the others.
+	 */
+	public void setMaxRequestsPerHost(int maxRequests) {
+		mNetworkQueue.setMaxRequestsPerHost(maxRequests);
+	}
+
+	/**
+	 * Limits how many requests to the given host may be performed at once, overriding
+	 * {@link #setMaxRequestsPerHost(int)}.
+	 */
+	public void setMaxRequestsPerHost(String host, int maxRequests) {
+		mNetworkQueue.setMaxRequestsPerHost(host, maxRequests);
+	}
+
+	/**
+	 * Sets how many requests the given host may be served in a row when hosts take turns;
+	 * one by default.
+	 */
+	public void setHostWeight(String host, int weight) {
+		mNetworkQueue.setHostWeight(host, weight);
+	}
+
+	/**
+	 * Gets the pool sizing the network dispatchers, or null if their number is fixed.
+	 */
+	public NetworkDispatcherPool getDispatcherPool() {
+		return mDispatcherPool;
 	}
 
     /**
@@ -177,11 +391,9 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
-        synchronized (mCurrentRequests) {
-            for (Request<?> request : mCurrentRequests) {
-                if (filter.apply(request)) {
-                    request.cancel();
-                }
+        for (Request<?> request : mCurrentRequests.keySet()) {
+            if (filter.apply(request)) {
+                request.cancel();
             }
         }
     }
@@ -210,9 +422,7 @@ public class RequestQueue {
     public Request add(Request request) {
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
-        }
+        mCurrentRequests.put(request, Boolean.TRUE);
 
         // Process requests in the order they are added.
         request.setSequence(getSequenceNumber());
@@ -225,27 +435,31 @@ public class RequestQueue {
 			return request;
         }
 
+        // Requests without a cache key can't be staged, as ConcurrentHashMap has no null keys.
+        String cacheKey = request.getCacheKey();
+        if (cacheKey == null) {
+            mCacheQueue.add(request);
+            return request;
+        }
+
         // Insert request into stage if there's already a request with the same cache key in flight.
-        synchronized (mWaitingRequests) {
-            String cacheKey = request.getCacheKey();
-            if (mWaitingRequests.containsKey(cacheKey)) {
-                // There is already a request in flight. Queue up.
-                Queue<Request> stagedRequests = mWaitingRequests.get(cacheKey);
-                if (stagedRequests == null) {
-                    stagedRequests = new LinkedList<Request>();
+        while (true) {
+            WaitingRequests stagedRequests = mWaitingRequests.get(cacheKey);
+            if (stagedRequests == null) {
+                // Insert an empty list for this cacheKey, indicating there is now a request in
+                // flight.
+                if (mWaitingRequests.putIfAbsent(cacheKey, new WaitingRequests()) == null) {
+                    mCacheQueue.add(request);
+                    return request;
                 }
-                stagedRequests.add(request);
-                mWaitingRequests.put(cacheKey, stagedRequests);
+            } else if (stagedRequests.add(request)) {
+                // There is already a request in flight. Queue up.
                 if (VolleyLog.DEBUG) {
                     VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
                 }
-            } else {
-                // Insert 'null' queue for this cacheKey, indicating there is now a request in
-                // flight.
-                mWaitingRequests.put(cacheKey, null);
-                mCacheQueue.add(request);
+                return request;
             }
-            return request;
+            // The request in flight finished meanwhile; try again.
         }
     }
 
@@ -254,27 +468,27 @@ public class RequestQueue {
      * has finished.
      *
      * <p>Releases waiting requests for <code>request.getCacheKey()</code> if
-     *      <code>request.shouldCache()</code>.</p>
+     *      <code>request.shouldCache()</code> and the cache key is not null.</p>
      */
     void finish(Request request) {
         // Remove from the set of requests currently being processed.
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
-        }
+        mCurrentRequests.remove(request);
 
-        if (!request.isForceUpdate() && request.shouldCache()) {
-            synchronized (mWaitingRequests) {
-                String cacheKey = request.getCacheKey();
-                Queue<Request> waitingRequests = mWaitingRequests.remove(cacheKey);
-                if (waitingRequests != null) {
-                    if (VolleyLog.DEBUG) {
-                        VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
-								waitingRequests.size(), cacheKey);
-                    }
-                    // Process all queued up requests. They won't be considered as in flight, but
-                    // that's not a problem as the cache has been primed by 'request'.
-                    mCacheQueue.addAll(waitingRequests);
+        String cacheKey = request.getCacheKey();
+        if (!request.isForceUpdate() && request.shouldCache() && cacheKey != null) {
+            WaitingRequests stagedRequests = mWaitingRequests.remove(cacheKey);
+            if (stagedRequests != null) {
+                List<Request> waitingRequests = stagedRequests.close();
+                if (waitingRequests.isEmpty()) {
+                    return;
+                }
+                if (VolleyLog.DEBUG) {
+                    VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
+                            waitingRequests.size(), cacheKey);
                 }
+                // Process all queued up requests. They won't be considered as in flight, but
+                // that's not a problem as the cache has been primed by 'request'.
+                mCacheQueue.addAll(waitingRequests);
             }
         }
     }
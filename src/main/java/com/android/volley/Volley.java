@@ -9,6 +9,7 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import com.android.volley.cache.Cache;
 import com.android.volley.cache.DiskCache;
+import com.android.volley.cache.WriteBehindCache;
 import com.android.volley.stack.HttpClientStack;
 import com.android.volley.stack.HttpStack;
 import com.android.volley.stack.HurlStack;
@@ -46,7 +47,8 @@ public class Volley {
      */
     public static RequestQueue newRequestQueue(Context context, HttpStack stack) {
         File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
-        return newRequestQueue(context, stack, new DiskCache(cacheDir));
+        // Write responses to disk behind their delivery, off the network dispatchers.
+        return newRequestQueue(context, stack, new WriteBehindCache(new DiskCache(cacheDir)));
     }
 
     /**
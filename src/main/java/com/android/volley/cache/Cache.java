@@ -18,9 +18,19 @@ package com.android.volley.cache;
 
 import java.util.Map;
 import java.util.Collections;
+import java.util.regex.Pattern;
 
 /**
  * An interface for a cache keyed by a String with a byte array as data.
+ *
+ * <p>{@link #invalidatePrefix(String, long)} and {@link #removeMatching(String, Pattern)}
+ * were added to this interface after it was first published, which breaks source and
+ * binary compatibility for implementations outside this library: they must add both
+ * methods. A cache without a sorted key index can implement them by checking each of
+ * its keys.</p>
+ *
+ * <p>{@link #getStats()} was added the same way. Implementations can keep their counters
+ * in a {@link CacheStatsCounter} and return its {@link CacheStatsCounter#snapshot()}.</p>
  */
 public interface Cache {
     /**
@@ -56,11 +66,33 @@ public interface Cache {
      */
     public void remove(String key);
 
+    /**
+     * Invalidates every entry whose key starts with the given prefix.
+     * @param prefix Key prefix, such as the URL of a resource collection
+     * @param expireTime The new expireTime
+     */
+    public void invalidatePrefix(String prefix, long expireTime);
+
+    /**
+     * Removes every entry whose key starts with the given prefix and matches the pattern.
+     * Only keys with the prefix are matched against the pattern, so pass the longest
+     * literal prefix of the keys the pattern can match.
+     * @param prefix Key prefix; empty to match the pattern against every key
+     * @param pattern Pattern the whole key must match, or null to remove every key with
+     *     the prefix
+     */
+    public void removeMatching(String prefix, Pattern pattern);
+
     /**
      * Empties the cache.
      */
     public void clear();
 
+    /**
+     * Returns a snapshot of the cache's counters. Cheap enough to be polled periodically.
+     */
+    public CacheStats getStats();
+
     /**
      * Data and metadata for an entry returned by the cache.
      */
@@ -84,6 +116,9 @@ public interface Cache {
 
         /** Immutable response headers as received from server; must be non-null. */
         public Map<String, String> responseHeaders = Collections.emptyMap();
+
+        /** Cache partition the entry is accounted to, or null for none. */
+        public String partition;
         
         /** True if the entry is expired. */
         public boolean isExpired() {
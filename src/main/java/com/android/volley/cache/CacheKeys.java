@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.util.regex.Pattern;
+
+/**
+ * Key matching shared by the bulk operations of the {@link Cache} implementations.
+ */
+final class CacheKeys {
+
+    private CacheKeys() {
+    }
+
+    /**
+     * True if the key is selected by {@link Cache#removeMatching(String, Pattern)}.
+     * @param pattern Pattern the whole key must match, or null to only check the prefix.
+     */
+    static boolean matches(String key, String prefix, Pattern pattern) {
+        return key.startsWith(prefix) && (pattern == null || pattern.matcher(key).matches());
+    }
+}
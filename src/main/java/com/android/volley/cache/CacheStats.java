@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+/**
+ * Immutable snapshot of a {@link Cache}'s counters since it was created, as returned by
+ * {@link Cache#getStats()}. Counters are read one by one without stopping the cache, so
+ * a snapshot taken under load may be off by the operations in flight.
+ */
+public final class CacheStats {
+
+    private final long mHitCount;
+    private final long mMissCount;
+    private final long mPutCount;
+    private final long mEvictionCount;
+    private final long mBytesRead;
+    private final long mBytesWritten;
+    private final long mTotalGetTimeNanos;
+    private final long mPruneCount;
+    private final long mTotalPruneTimeMs;
+    private final long mMaxPruneTimeMs;
+
+    CacheStats(long hitCount, long missCount, long putCount, long evictionCount,
+            long bytesRead, long bytesWritten, long totalGetTimeNanos, long pruneCount,
+            long totalPruneTimeMs, long maxPruneTimeMs) {
+        mHitCount = hitCount;
+        mMissCount = missCount;
+        mPutCount = putCount;
+        mEvictionCount = evictionCount;
+        mBytesRead = bytesRead;
+        mBytesWritten = bytesWritten;
+        mTotalGetTimeNanos = totalGetTimeNanos;
+        mPruneCount = pruneCount;
+        mTotalPruneTimeMs = totalPruneTimeMs;
+        mMaxPruneTimeMs = maxPruneTimeMs;
+    }
+
+    /** Number of gets that returned an entry. */
+    public long hitCount() {
+        return mHitCount;
+    }
+
+    /** Number of gets that returned null. */
+    public long missCount() {
+        return mMissCount;
+    }
+
+    /** Number of gets. */
+    public long requestCount() {
+        return mHitCount + mMissCount;
+    }
+
+    /** Share of gets that returned an entry, or 1 if there were none. */
+    public double hitRate() {
+        long requests = requestCount();
+        return requests == 0 ? 1.0 : (double) mHitCount / requests;
+    }
+
+    /** Number of entries put. */
+    public long putCount() {
+        return mPutCount;
+    }
+
+    /** Number of entries dropped to make room for others. */
+    public long evictionCount() {
+        return mEvictionCount;
+    }
+
+    /** Total size of the entry data returned by gets. */
+    public long bytesRead() {
+        return mBytesRead;
+    }
+
+    /** Total size of the entry data put. */
+    public long bytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Total time spent in gets, in nanoseconds. */
+    public long totalGetTimeNanos() {
+        return mTotalGetTimeNanos;
+    }
+
+    /** Average time a get took, hit or miss, in nanoseconds; 0 if there were none. */
+    public long averageGetTimeNanos() {
+        long requests = requestCount();
+        return requests == 0 ? 0 : mTotalGetTimeNanos / requests;
+    }
+
+    /** Number of prune passes run to bring the cache back under its limits. */
+    public long pruneCount() {
+        return mPruneCount;
+    }
+
+    /** Total time spent in prune passes, in milliseconds. */
+    public long totalPruneTimeMs() {
+        return mTotalPruneTimeMs;
+    }
+
+    /** Duration of the longest prune pass, in milliseconds. */
+    public long maxPruneTimeMs() {
+        return mMaxPruneTimeMs;
+    }
+
+    /**
+     * Returns a copy of these stats with the eviction and prune counters of another
+     * snapshot, for caches that leave eviction to the cache they wrap.
+     */
+    CacheStats withEvictionsOf(CacheStats other) {
+        return new CacheStats(mHitCount, mMissCount, mPutCount, other.mEvictionCount,
+                mBytesRead, mBytesWritten, mTotalGetTimeNanos, other.mPruneCount,
+                other.mTotalPruneTimeMs, other.mMaxPruneTimeMs);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CacheStats[hits=%d,misses=%d,hitRate=%d%%,puts=%d,evictions=%d,"
+                + "read=%d,written=%d,avgGetUs=%d,prunes=%d,maxPruneMs=%d]",
+                mHitCount, mMissCount, (int) (hitRate() * 100), mPutCount, mEvictionCount,
+                mBytesRead, mBytesWritten, averageGetTimeNanos() / 1000, mPruneCount,
+                mMaxPruneTimeMs);
+    }
+}
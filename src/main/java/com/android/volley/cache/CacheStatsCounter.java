@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free counters behind {@link Cache#getStats()}, for {@link Cache} implementations to
+ * record their operations in. Recording never blocks, so it can be done on every get
+ * without slowing readers down.
+ */
+public class CacheStatsCounter {
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mPutCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mTotalGetTimeNanos = new AtomicLong();
+    private final AtomicLong mPruneCount = new AtomicLong();
+    private final AtomicLong mTotalPruneTimeMs = new AtomicLong();
+    private final AtomicLong mMaxPruneTimeMs = new AtomicLong();
+
+    /**
+     * Records a get that returned an entry.
+     * @param bytes Size of the entry data.
+     * @param nanos Time the get took.
+     */
+    public void recordHit(long bytes, long nanos) {
+        mHitCount.incrementAndGet();
+        mBytesRead.addAndGet(bytes);
+        mTotalGetTimeNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records a get that returned null.
+     * @param nanos Time the get took.
+     */
+    public void recordMiss(long nanos) {
+        mMissCount.incrementAndGet();
+        mTotalGetTimeNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records a put.
+     * @param bytes Size of the entry data.
+     */
+    public void recordPut(long bytes) {
+        mPutCount.incrementAndGet();
+        mBytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Records entries dropped to make room for others.
+     */
+    public void recordEvictions(int count) {
+        mEvictionCount.addAndGet(count);
+    }
+
+    /**
+     * Records a prune pass, including the entries it evicted.
+     * @param evicted Number of entries evicted by the pass.
+     * @param durationMs Time the pass took.
+     */
+    public void recordPrune(int evicted, long durationMs) {
+        recordEvictions(evicted);
+        mPruneCount.incrementAndGet();
+        mTotalPruneTimeMs.addAndGet(durationMs);
+        long max;
+        do {
+            max = mMaxPruneTimeMs.get();
+        } while (durationMs > max && !mMaxPruneTimeMs.compareAndSet(max, durationMs));
+    }
+
+    /**
+     * Returns the current value of every counter.
+     */
+    public CacheStats snapshot() {
+        return new CacheStats(mHitCount.get(), mMissCount.get(), mPutCount.get(),
+                mEvictionCount.get(), mBytesRead.get(), mBytesWritten.get(),
+                mTotalGetTimeNanos.get(), mPruneCount.get(), mTotalPruneTimeMs.get(),
+                mMaxPruneTimeMs.get());
+    }
+}
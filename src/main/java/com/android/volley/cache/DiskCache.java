@@ -19,44 +19,311 @@ package com.android.volley.cache;
 import android.os.SystemClock;
 import com.android.volley.VolleyLog;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
- * LruCache implementation that caches files directly onto the hard disk in the specified
- * directory. The default disk usage size is 5MB, but is configurable.
+ * Cache implementation that caches files directly onto the hard disk in the specified
+ * directory. The default disk usage size is 5MB, but is configurable, and entries are
+ * evicted least recently used first unless another {@link EvictionPolicy} is set.
+ *
+ * <p>Entry files are named after the MD5 digest of their key and spread over
+ * {@code 16 * 16} shard directories, so no single directory grows too large. Caches
+ * written with the older flat layout are migrated on first initialization.</p>
  */
 public class DiskCache implements Cache {
 
-    /** Map of the Key, CacheHeader pairs */
-    private final Map<String, CacheHeader> mEntries =
-            new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+    /** Map of the Key, CacheHeader pairs. Guarded by {@link #mIndexLock}. */
+    private final Map<String, CacheHeader> mEntries = new LinkedHashMap<String, CacheHeader>();
+
+    /** The keys of {@link #mEntries} in order, for prefix lookups. Guarded by {@link #mIndexLock}. */
+    private final TreeSet<String> mSortedKeys = new TreeSet<String>();
+
+    /**
+     * Picks the entries to prune, except those of partitions with a quota. Guarded by
+     * {@link #mIndexLock}.
+     */
+    private EvictionPolicy mEvictionPolicy = new LruEvictionPolicy();
 
-    /** Total amount of space currently used by the cache in bytes. */
+    /** Total amount of space currently used by the cache in bytes. Guarded by {@link #mIndexLock}. */
     private long mTotalSize = 0;
 
+    /** Partitions with their own quota, by name. Guarded by {@link #mIndexLock}. */
+    private final Map<String, Partition> mPartitions = new HashMap<String, Partition>();
+
+    /** A partition with its own byte quota and eviction order. */
+    private static class Partition {
+        final long highWatermarkBytes;
+        final long lowWatermarkBytes;
+        final EvictionPolicy policy;
+        /** Total size of the partition's entries. */
+        long size;
+
+        Partition(long maxBytes, EvictionPolicy policy) {
+            this.highWatermarkBytes = (long) (maxBytes * (double) HIGH_WATERMARK_FACTOR);
+            this.lowWatermarkBytes = (long) (maxBytes * (double) HYSTERESIS_FACTOR);
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * Guards the in-memory index and the journal. It is only held for in-memory updates
+     * and journal appends, never while an entry file is read or written.
+     */
+    private final Object mIndexLock = new Object();
+
+    /** Per-key locks serializing file I/O for keys that hash to the same stripe. */
+    private final ReentrantReadWriteLock[] mStripes;
+
+    /** Number of lock stripes; must be a power of two. */
+    private static final int STRIPE_COUNT = 32;
+
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
 
     /** The maximum size of the cache in bytes. */
-    private final int mMaxCacheSizeInBytes;
+    private final long mMaxCacheSizeInBytes;
+
+    /** The maximum number of entries in the cache. */
+    private final int mMaxEntries;
+
+    /** Size and entry count above which the janitor starts pruning. */
+    private final long mHighWatermarkBytes;
+    private final int mHighWatermarkEntries;
+
+    /** Size and entry count the janitor prunes down to. */
+    private final long mLowWatermarkBytes;
+    private final int mLowWatermarkEntries;
 
     /** Default maximum disk usage in bytes. */
     private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
-    /** High water mark percentage for the cache */
+    /** Fraction of the maximum size above which the janitor starts pruning. */
+    private static final float HIGH_WATERMARK_FACTOR = 0.95f;
+
+    /** Fraction of the maximum size the janitor prunes down to. */
     private static final float HYSTERESIS_FACTOR = 0.9f;
 
-    /** Magic number for current version of cache file format. */
-    private static final int CACHE_MAGIC = 0x20120504;
+    /** Maximum number of entries the janitor deletes before yielding to other maintenance. */
+    private static final int PRUNE_BATCH_SIZE = 32;
+
+    /** Maximum number of entries the scrubber verifies before yielding to other maintenance. */
+    private static final int SCRUB_BATCH_SIZE = 16;
+
+    /** Magic number for the original cache file format, still accepted when reading. */
+    private static final int CACHE_MAGIC_V1 = 0x20120504;
+
+    /**
+     * Magic number for current version of cache file format. Its fixed-size fields come
+     * first: the expire time, so it can be rewritten in place, followed by the CRC32 of
+     * the header, and the length of the whole header, so the header can be read without
+     * parsing it byte by byte. They are followed by the CRC32, codec and decoded length
+     * of the entry data, then the key, partition, charset and response headers.
+     */
+    private static final int CACHE_MAGIC = 0x20160120;
+
+    /** Offset of the expire time in a file of the current format. */
+    private static final int EXPIRE_TIME_OFFSET = 4;
+
+    /**
+     * Offset of the header checksum in a file of the current format, right after the
+     * expire time so both can be rewritten with one write. The checksum covers the whole
+     * header with this field taken as zero.
+     */
+    private static final int HEADER_CHECKSUM_OFFSET = 12;
+
+    /** Offset of the header length in a file of the current format. */
+    private static final int HEADER_LENGTH_OFFSET = 16;
+
+    /** Bytes to read from a file of the current format to learn its header length. */
+    private static final int HEADER_PREFIX_BYTES = HEADER_LENGTH_OFFSET + 4;
+
+    /** Codec of entry data stored as is. */
+    static final int CODEC_NONE = 0;
+
+    /** Codec of entry data compressed with {@link Deflater}. */
+    static final int CODEC_DEFLATE = 1;
+
+    /** Entries smaller than this are never compressed. */
+    private static final int COMPRESSION_THRESHOLD_BYTES = 1024;
+
+    /** Compressed data is only kept if it is at most this fraction of the original size. */
+    private static final float COMPRESSION_MIN_SAVING = 0.9f;
+
+    /** Suffix of the temporary file an entry is written to before it is renamed into place. */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** Number of shard directory levels below the root directory. */
+    private static final int SHARD_DEPTH = 2;
+
+    /** Prefix of the directories holding cleared files until they are deleted. */
+    private static final String TRASH_PREFIX = ".trash-";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Digests used to name entry files, one per thread. */
+    private static final ThreadLocal<MessageDigest> sDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /** Journal of index updates, replayed on startup instead of reading every entry. */
+    private final DiskCacheJournal mJournal;
+
+    /** Runs journal compaction off the calling thread; created on first use. */
+    private ExecutorService mMaintenanceExecutor;
+
+    /** True while a journal compaction is queued or running. */
+    private boolean mCompactionScheduled;
+
+    /** True while a prune pass is queued or running. Guarded by {@link #mIndexLock}. */
+    private boolean mPruneScheduled;
+
+    /** Notified after every prune pass; may be null. */
+    private volatile PruneListener mPruneListener;
+
+    /** How hard {@link #put(String, Entry)} works to get entries onto the disk. */
+    private volatile Durability mDurability = Durability.NONE;
+
+    /** Whether text entries are compressed on disk. */
+    private volatile boolean mCompressionEnabled;
+
+    /** Number of entries found to be corrupt, by reads or by the scrubber. */
+    private final AtomicLong mCorruptEntries = new AtomicLong();
+
+    /** Counters behind {@link #getStats()}. */
+    private final CacheStatsCounter mStats = new CacheStatsCounter();
+
+    /** True while a scrub pass is queued or running. Guarded by {@link #mIndexLock}. */
+    private boolean mScrubScheduled;
+
+    /** Whether {@link #initialize()} loads the index on a background thread. */
+    private boolean mLazyInitialization;
+
+    /** True once the index has been loaded. */
+    private boolean mInitialized;
 
     /**
-     * Constructs an instance of the DiskCache at the specified directory.
+     * Keys written, removed or read directly from disk while the index is loading; the
+     * loaded index must not override them. Null when no load is in progress.
+     */
+    private Set<String> mTouchedWhileLoading;
+
+    /** True if the cache was cleared while the index was loading. */
+    private boolean mClearedWhileLoading;
+
+    /**
+     * Bulk changes made while the index is loading, to be applied to the entries that
+     * were not indexed yet. Null when no load is in progress.
+     */
+    private List<BulkChange> mBulkChangesWhileLoading;
+
+    /** An {@link #invalidatePrefix} or {@link #removeMatching} call. */
+    private static class BulkChange {
+        final String prefix;
+        final Pattern pattern;
+        /** True for a removal, false for an invalidation. */
+        final boolean remove;
+        final long expireTime;
+
+        BulkChange(String prefix, Pattern pattern, boolean remove, long expireTime) {
+            this.prefix = prefix;
+            this.pattern = pattern;
+            this.remove = remove;
+            this.expireTime = expireTime;
+        }
+    }
+
+    /**
+     * Durability of written entries. Every entry is written to a temporary file and
+     * renamed into place, so a crash never leaves a torn entry behind; the durability
+     * only decides whether the data is synced to disk before {@code put} returns.
+     */
+    public enum Durability {
+        /** Leave flushing to the OS; an entry may be lost if the device loses power. */
+        NONE,
+        /** Sync every entry before it is published; one sync per put. */
+        SYNC
+    }
+
+    /**
+     * Receives the outcome of each prune pass, on the cache's maintenance thread.
+     */
+    public interface PruneListener {
+        /**
+         * @param filesDeleted Number of entries evicted by the pass.
+         * @param bytesReclaimed Total size of the evicted entries.
+         * @param durationMs Time spent pruning, not counting the time the pass waited
+         *     behind other maintenance between batches.
+         */
+        public void onPrune(int filesDeleted, long bytesReclaimed, long durationMs);
+    }
+
+    /**
+     * Constructs an instance of the DiskCache at the specified directory, limited both in
+     * size and in number of entries. Whichever limit is reached first triggers pruning.
      * @param rootDirectory The root directory of the cache.
      * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param maxEntries The maximum number of entries in the cache.
      */
-    public DiskCache(File rootDirectory, int maxCacheSizeInBytes) {
+    public DiskCache(File rootDirectory, long maxCacheSizeInBytes, int maxEntries) {
+        if (maxCacheSizeInBytes <= 0 || maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache limits must be positive");
+        }
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mMaxEntries = maxEntries;
+        mHighWatermarkBytes = (long) (maxCacheSizeInBytes * (double) HIGH_WATERMARK_FACTOR);
+        mLowWatermarkBytes = (long) (maxCacheSizeInBytes * (double) HYSTERESIS_FACTOR);
+        mHighWatermarkEntries = (int) (maxEntries * (double) HIGH_WATERMARK_FACTOR);
+        mLowWatermarkEntries = (int) (maxEntries * (double) HYSTERESIS_FACTOR);
+        mJournal = new DiskCacheJournal(rootDirectory);
+        mStripes = new ReentrantReadWriteLock[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Constructs an instance of the DiskCache at the specified directory, limited
+     * in size only.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public DiskCache(File rootDirectory, long maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructs an instance of the DiskCache at the specified directory, limited
+     * in size only. Kept for binary compatibility with code compiled against the
+     * int-sized constructor.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public DiskCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, (long) maxCacheSizeInBytes);
     }
 
     /**
@@ -69,137 +336,1257 @@ public class DiskCache implements Cache {
     }
 
     /**
-     * Clears the cache. Deletes all cached files from disk.
+     * Makes {@link #initialize()} return immediately and load the index on a background
+     * thread. Until loading completes, lookups of keys that are not indexed yet read the
+     * entry's file directly, so first requests don't wait for the whole cache to be indexed.
+     * Must be called before {@link #initialize()}.
+     */
+    public void setLazyInitialization(boolean lazy) {
+        synchronized (mIndexLock) {
+            mLazyInitialization = lazy;
+        }
+    }
+
+    /**
+     * Sets how hard {@link #put(String, Entry)} works to get entries onto the disk.
+     * Defaults to {@link Durability#NONE}.
+     */
+    public void setDurability(Durability durability) {
+        mDurability = durability;
+    }
+
+    /**
+     * Sets the policy that picks which entries are pruned when the cache is full.
+     * Defaults to {@link LruEvictionPolicy}. Entries already indexed are handed to
+     * the new policy.
+     */
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        synchronized (mIndexLock) {
+            policy.clear();
+            for (CacheHeader entry : mEntries.values()) {
+                if (getPartition(entry) == null) {
+                    policy.onInsert(entry.key, entry.size);
+                }
+            }
+            mEvictionPolicy = policy;
+        }
+    }
+
+    /**
+     * Gives a partition its own byte quota and eviction order. Entries put with that
+     * {@link Entry#partition} are then pruned when the partition outgrows its quota, and
+     * otherwise only once the rest of the cache has nothing left to prune, so a burst of
+     * traffic in other partitions can't push them out. Entries already indexed are moved
+     * into the partition.
+     * @param partition The partition name.
+     * @param maxBytes The maximum total size of the partition's entries.
+     * @param policy Picks which of the partition's entries are pruned first.
+     */
+    public void setPartitionQuota(String partition, long maxBytes, EvictionPolicy policy) {
+        synchronized (mIndexLock) {
+            List<CacheHeader> members = new ArrayList<CacheHeader>();
+            for (CacheHeader entry : mEntries.values()) {
+                if (partition.equals(entry.partition)) {
+                    members.add(entry);
+                }
+            }
+            for (CacheHeader entry : members) {
+                removeEntry(entry.key);
+            }
+            policy.clear();
+            mPartitions.put(partition, new Partition(maxBytes, policy));
+            for (CacheHeader entry : members) {
+                putEntry(entry.key, entry);
+            }
+            if (mInitialized) {
+                schedulePruneIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * Gives a partition its own byte quota, pruning its least recently used entries first.
+     * @see #setPartitionQuota(String, long, EvictionPolicy)
+     */
+    public void setPartitionQuota(String partition, long maxBytes) {
+        setPartitionQuota(partition, maxBytes, new LruEvictionPolicy());
+    }
+
+    /**
+     * Makes the cache deflate entries with a textual content type, such as JSON, HTML
+     * or XML, before writing them to disk. Entries are inflated transparently when read,
+     * and entries written either way stay readable. Disabled by default.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+    }
+
+    /**
+     * Sets the listener notified after every prune pass, or null for none.
+     */
+    public void setPruneListener(PruneListener listener) {
+        mPruneListener = listener;
+    }
+
+    /**
+     * Returns the number of corrupt entries found since the cache was created, either
+     * when reading them or by {@link #scheduleScrub()}. Corrupt entries are removed.
+     */
+    public long getCorruptEntryCount() {
+        return mCorruptEntries.get();
+    }
+
+    /**
+     * Verifies the checksum of every entry on the maintenance thread, removing the ones
+     * that are damaged, so corruption is found before a request needs the entry. The
+     * pass works in small batches and does nothing if one is already queued.
+     */
+    public void scheduleScrub() {
+        synchronized (mIndexLock) {
+            if (mScrubScheduled) {
+                return;
+            }
+            mScrubScheduled = true;
+        }
+        getMaintenanceExecutor().execute(new ScrubPass());
+    }
+
+    /**
+     * Clears the cache. The cached files are moved aside with one rename per shard
+     * directory and deleted on the maintenance thread, so the cache is usable again
+     * right away however many entries it held.
+     */
+    public void clear() {
+        // Stripes are always taken in ascending order, and never while holding another
+        // stripe elsewhere, so locking all of them cannot deadlock.
+        for (ReentrantReadWriteLock stripe : mStripes) {
+            stripe.writeLock().lock();
+        }
+        try {
+            synchronized (mIndexLock) {
+                if (mTouchedWhileLoading != null) {
+                    mClearedWhileLoading = true;
+                    mBulkChangesWhileLoading.clear();
+                }
+                moveContentsToTrash();
+                mEntries.clear();
+                mSortedKeys.clear();
+                mEvictionPolicy.clear();
+                for (Partition partition : mPartitions.values()) {
+                    partition.policy.clear();
+                    partition.size = 0;
+                }
+                mTotalSize = 0;
+                scheduleJournalRebuild();
+                scheduleTrashDeletion();
+            }
+        } finally {
+            for (ReentrantReadWriteLock stripe : mStripes) {
+                stripe.writeLock().unlock();
+            }
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    public Entry get(String key) {
+        long start = System.nanoTime();
+        Entry entry = getEntry(key);
+        if (entry != null) {
+            mStats.recordHit(entry.getSize(), System.nanoTime() - start);
+        } else {
+            mStats.recordMiss(System.nanoTime() - start);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns a snapshot of the cache's counters. Bytes are counted as entry data, before
+     * compression, and evictions are the files deleted by prune passes.
+     */
+    public CacheStats getStats() {
+        return mStats.snapshot();
+    }
+
+    private Entry getEntry(String key) {
+        ReentrantReadWriteLock.ReadLock lock = getStripe(key).readLock();
+        CacheHeader entry;
+        lock.lock();
+        try {
+            boolean loading;
+            synchronized (mIndexLock) {
+                entry = mEntries.get(key);
+                if (entry != null) {
+                    getEvictionPolicy(entry).onAccess(key);
+                }
+                loading = mTouchedWhileLoading != null;
+            }
+            // if the entry does not exist, return.
+            if (entry == null) {
+                // While the index is loading the entry may be on disk without being indexed
+                // yet, so look at that single file instead of waiting for the whole index.
+                return loading ? getUnindexed(key) : null;
+            }
+
+            File file = getFileForKey(key);
+            try {
+                return readEntry(file, key, null);
+            } catch (IOException e) {
+                onReadFailure(file, e);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // A read lock can't be upgraded, so drop the broken entry after releasing it.
+        removeIfSame(key, entry);
+        return null;
+    }
+
+    /**
+     * Reads an entry that is not in the index yet directly from its file, and indexes it.
+     * Must be called with the key's stripe held.
+     */
+    private Entry getUnindexed(String key) {
+        File file = getFileForKey(key);
+        if (!file.exists()) {
+            return null;
+        }
+        CacheHeader header = new CacheHeader();
+        try {
+            Entry entry = readEntry(file, key, header);
+            header.size = file.length();
+            header.fileName = getFilenameForKey(key);
+            header.responseHeaders = null;
+            BulkChange change;
+            synchronized (mIndexLock) {
+                change = getBulkChangeWhileLoading(key);
+                if (change == null) {
+                    if (mTouchedWhileLoading != null) {
+                        mTouchedWhileLoading.add(key);
+                    }
+                    if (!mEntries.containsKey(key)) {
+                        putEntry(key, header);
+                    }
+                }
+            }
+            if (change != null) {
+                // Left for the loader to apply to the file; only the result is seen here.
+                if (change.remove) {
+                    return null;
+                }
+                entry.expireTime = change.expireTime;
+            }
+            return entry;
+        } catch (IOException e) {
+            onReadFailure(file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Logs why an entry could not be read, and counts it if its file is corrupt.
+     */
+    private void onReadFailure(File file, IOException e) {
+        if (e instanceof CorruptEntryException) {
+            mCorruptEntries.incrementAndGet();
+        }
+        VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+    }
+
+    /**
+     * Reads the entry stored in the given file. The header is read with two small
+     * positional reads and the entry data with one more, straight into the array handed
+     * out with the entry.
+     * @param file The file holding the entry.
+     * @param key The key the entry is expected to be stored under.
+     * @param header If not null, receives the header read from the file.
+     * @throws IOException if the file can't be read or holds a different key.
+     */
+    private Entry readEntry(File file, String key, CacheHeader header) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer headerBytes = readHeaderBytes(channel);
+            // The index may have been rebuilt from the journal, which does not carry
+            // the response headers, so always use the header stored with the entry.
+            CacheHeader stored = CacheHeader.readHeader(headerBytes);
+            if (!key.equals(stored.key)) {
+                throw new IOException("Expected key " + key + ", found " + stored.key);
+            }
+            byte[] data;
+            if (headerBytes.hasRemaining()) {
+                // Files of the original format were read whole along with their header.
+                data = new byte[headerBytes.remaining()];
+                headerBytes.get(data);
+            } else {
+                long length = channel.size() - headerBytes.position();
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Cache file too large: " + length + " bytes");
+                }
+                data = new byte[(int) length];
+                readFully(channel, ByteBuffer.wrap(data), headerBytes.position());
+            }
+            data = decode(stored, data);
+            if (header != null) {
+                header.key = stored.key;
+                header.expireTime = stored.expireTime;
+                header.charset = stored.charset;
+                header.responseHeaders = stored.responseHeaders;
+                header.partition = stored.partition;
+            }
+            return stored.toCacheEntry(data);
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Returns the entry data as stored, decoded with the header's codec.
+     */
+    private static byte[] decode(CacheHeader header, byte[] stored) throws IOException {
+        if (header.hasChecksum && crc32(stored) != header.checksum) {
+            throw new CorruptEntryException("Checksum mismatch");
+        }
+        if (header.codec == CODEC_NONE) {
+            return stored;
+        }
+        if (header.codec != CODEC_DEFLATE || header.dataLength < 0) {
+            throw new IOException("Unsupported codec " + header.codec);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] data = new byte[header.dataLength];
+            int length = 0;
+            while (length < data.length && !inflater.finished()) {
+                int count = inflater.inflate(data, length, data.length - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != data.length || !inflater.finished()) {
+                throw new CorruptEntryException("Truncated compressed entry");
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new CorruptEntryException("Corrupt compressed entry: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * True if the entry's content type is textual and the entry is large enough for
+     * compression to pay off.
+     */
+    private static boolean shouldCompress(Entry entry) {
+        if (entry.data.length < COMPRESSION_THRESHOLD_BYTES || entry.responseHeaders == null) {
+            return false;
+        }
+        for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+            if ("Content-Type".equalsIgnoreCase(header.getKey()) && header.getValue() != null) {
+                String type = header.getValue().toLowerCase(Locale.US);
+                return type.startsWith("text/") || type.contains("json")
+                        || type.contains("xml") || type.contains("javascript");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compresses the data, or returns null if that doesn't save enough space to be
+     * worth inflating on every read.
+     */
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[8192];
+            int limit = (int) (data.length * COMPRESSION_MIN_SAVING);
+            while (!deflater.finished()) {
+                bytes.write(buffer, 0, deflater.deflate(buffer));
+                if (bytes.size() > limit) {
+                    return null;
+                }
+            }
+            return bytes.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Initializes the DiskCache by replaying its journal, falling back to scanning
+     * all files currently in the specified root directory if the journal is missing
+     * or corrupt. Creates the root directory if necessary.
+     *
+     * <p>With {@link #setLazyInitialization(boolean)} the index is loaded on a background
+     * thread and this method returns immediately.</p>
+     */
+    public void initialize() {
+        synchronized (mIndexLock) {
+            if (mInitialized || mTouchedWhileLoading != null) {
+                return;
+            }
+            if (!mRootDirectory.exists()) {
+                if (!mRootDirectory.mkdirs()) {
+                    VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                    return;
+                }
+                scheduleJournalRebuild();
+                mInitialized = true;
+                return;
+            }
+            mTouchedWhileLoading = new HashSet<String>();
+            mClearedWhileLoading = false;
+            mBulkChangesWhileLoading = new ArrayList<BulkChange>();
+            if (mLazyInitialization) {
+                getMaintenanceExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadIndex();
+                    }
+                });
+                return;
+            }
+        }
+        loadIndex();
+    }
+
+    /**
+     * Loads the index without holding any cache lock, then merges it into the entries
+     * that were touched in the meantime.
+     */
+    private void loadIndex() {
+        Map<String, CacheHeader> loaded = new LinkedHashMap<String, CacheHeader>();
+        List<File> staleFiles = new ArrayList<File>();
+        Map<File, CacheHeader> legacyFiles = new HashMap<File, CacheHeader>();
+        boolean journalUsable;
+        boolean repaired = false;
+        int expiredCount = 0;
+        try {
+            mJournal.replay(loaded);
+            repaired = reconcile(loaded, staleFiles);
+            Iterator<CacheHeader> iterator = loaded.values().iterator();
+            while (iterator.hasNext()) {
+                CacheHeader entry = iterator.next();
+                if (entry.isExpired()) {
+                    staleFiles.add(new File(mRootDirectory, entry.fileName));
+                    iterator.remove();
+                    expiredCount++;
+                }
+            }
+            journalUsable = true;
+        } catch (IOException e) {
+            VolleyLog.d("Cache journal unusable, scanning %s: %s",
+                    mRootDirectory.getAbsolutePath(), e.toString());
+            loaded.clear();
+            scanDirectory(loaded, staleFiles, legacyFiles);
+            journalUsable = false;
+        }
+        boolean hasTrash = hasTrash();
+        Map<String, Long> invalidations = new HashMap<String, Long>();
+
+        // Writers mark their key as touched under the index lock before doing any file
+        // I/O, so untouched stale files can safely be deleted while it is held.
+        synchronized (mIndexLock) {
+            // Files of touched keys may have been rewritten since they were read.
+            Set<File> touchedFiles = new HashSet<File>();
+            for (String key : mTouchedWhileLoading) {
+                File file = getFileForKey(key);
+                touchedFiles.add(file);
+                touchedFiles.add(new File(file.getPath() + TMP_SUFFIX));
+            }
+            for (File file : staleFiles) {
+                if (!touchedFiles.contains(file)) {
+                    file.delete();
+                }
+            }
+            if (!mClearedWhileLoading) {
+                for (CacheHeader entry : loaded.values()) {
+                    if (!mTouchedWhileLoading.contains(entry.key)
+                            && !applyBulkChanges(entry, invalidations)) {
+                        putEntry(entry.key, entry);
+                    }
+                }
+            }
+            migrateLegacyFiles(legacyFiles, invalidations);
+
+            // Changes made while loading were not journaled, so they require a rewrite.
+            if (journalUsable && !repaired && mTouchedWhileLoading.isEmpty()
+                    && !mClearedWhileLoading) {
+                for (int i = 0; i < expiredCount; i++) {
+                    mJournal.markRedundant();
+                }
+                mJournal.open();
+            } else {
+                scheduleJournalRebuild();
+            }
+            mTouchedWhileLoading = null;
+            mBulkChangesWhileLoading = null;
+            mInitialized = true;
+            if (hasTrash) {
+                scheduleTrashDeletion();
+            }
+            scheduleCompactionIfNeeded();
+            schedulePruneIfNeeded();
+        }
+        for (Map.Entry<String, Long> invalidation : invalidations.entrySet()) {
+            invalidate(invalidation.getKey(), invalidation.getValue());
+        }
+    }
+
+    /**
+     * Checks a replayed index against the entry files actually on disk. Journal records
+     * are appended after the file operation they describe, so a crash in between leaves
+     * files that were written but never journaled, or pruned and journaled but not
+     * deleted. Those files, and temporary files left by interrupted writes, are stale;
+     * entries whose file is gone are dropped. Only lists the shard directories, without
+     * opening any entry.
+     * @return True if the index had to be corrected.
+     */
+    private boolean reconcile(Map<String, CacheHeader> entries, List<File> staleFiles) {
+        Set<String> fileNames = new HashSet<String>();
+        File[] files = mRootDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(TRASH_PREFIX) || DiskCacheJournal.isJournalFile(name)) {
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    listShard(file, name + File.separatorChar, 1, fileNames, staleFiles);
+                } else {
+                    // The flat layout was migrated before the journal was first written.
+                    staleFiles.add(file);
+                }
+            }
+        }
+        int missing = 0;
+        Iterator<CacheHeader> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (!fileNames.remove(iterator.next().fileName)) {
+                iterator.remove();
+                missing++;
+            }
+        }
+        for (String orphan : fileNames) {
+            staleFiles.add(new File(mRootDirectory, orphan));
+        }
+        if (missing > 0 || !fileNames.isEmpty()) {
+            VolleyLog.d("Cache journal out of date: %d entries without a file, "
+                    + "%d files not indexed", missing, fileNames.size());
+        }
+        return missing > 0;
+    }
+
+    /**
+     * Lists one shard directory for {@link #reconcile}, descending until
+     * {@link #SHARD_DEPTH} is reached.
+     * @param path Path of the directory relative to the root directory, with a trailing
+     *     separator.
+     * @param fileNames Receives the relative path of every entry file.
+     * @param staleFiles Receives temporary files.
+     */
+    private void listShard(File directory, String path, int depth, Set<String> fileNames,
+            List<File> staleFiles) {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (depth < SHARD_DEPTH) {
+                listShard(new File(directory, name), path + name + File.separatorChar,
+                        depth + 1, fileNames, staleFiles);
+            } else if (name.endsWith(TMP_SUFFIX)) {
+                staleFiles.add(new File(directory, name));
+            } else {
+                fileNames.add(path + name);
+            }
+        }
+    }
+
+    /**
+     * Reads the header of every file in the shard directories into the given map.
+     * @param entries Receives the unexpired entries found.
+     * @param staleFiles Receives expired and unreadable files, to be deleted by the caller.
+     * @param legacyFiles Receives unexpired entries still stored in the flat layout.
+     */
+    private void scanDirectory(Map<String, CacheHeader> entries, List<File> staleFiles,
+            Map<File, CacheHeader> legacyFiles) {
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(TRASH_PREFIX)) {
+                // Left by a clear that was interrupted; deleted once the index is loaded.
+                continue;
+            }
+            if (file.isDirectory()) {
+                scanShard(file, 1, entries, staleFiles);
+            } else if (!DiskCacheJournal.isJournalFile(file.getName())) {
+                // Files directly in the root directory predate the sharded layout.
+                CacheHeader entry = readHeader(file, staleFiles);
+                if (entry != null) {
+                    legacyFiles.put(file, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans one shard directory, descending until {@link #SHARD_DEPTH} is reached.
+     */
+    private void scanShard(File directory, int depth, Map<String, CacheHeader> entries,
+            List<File> staleFiles) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (depth < SHARD_DEPTH) {
+                scanShard(file, depth + 1, entries, staleFiles);
+                continue;
+            }
+            CacheHeader entry = readHeader(file, staleFiles);
+            if (entry == null) {
+                continue;
+            }
+            entry.fileName = getFilenameForKey(entry.key);
+            if (file.equals(new File(mRootDirectory, entry.fileName))) {
+                entries.put(entry.key, entry);
+            } else {
+                // Misplaced, or a temporary file left behind by an interrupted write.
+                staleFiles.add(file);
+            }
+        }
+    }
+
+    /**
+     * Reads the header of a single entry file for the index.
+     * @return The header, or null if the entry is expired or unreadable, in which case
+     *     the file is added to {@code staleFiles}.
+     */
+    private static CacheHeader readHeader(File file, List<File> staleFiles) {
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            CacheHeader entry = CacheHeader.readHeader(readHeaderBytes(is.getChannel()));
+            if (entry.isExpired()) {
+                staleFiles.add(file);
+                return null;
+            }
+            entry.size = file.length();
+            entry.responseHeaders = null;
+            return entry;
+        } catch (IOException e) {
+            staleFiles.add(file);
+            return null;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Reads the header of an entry file with two positional reads: the fixed-size fields
+     * up to the header length, then the rest of the header. Files of the original format
+     * don't record their header length and are read whole.
+     * @return A little-endian buffer holding at least the whole header, positioned at 0.
+     */
+    private static ByteBuffer readHeaderBytes(FileChannel channel) throws IOException {
+        long fileLength = channel.size();
+        ByteBuffer prefix = ByteBuffer.allocate(HEADER_PREFIX_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, prefix, 0);
+        int magic = prefix.getInt(0);
+        int length;
+        if (magic == CACHE_MAGIC) {
+            length = prefix.getInt(HEADER_LENGTH_OFFSET);
+            if (length < HEADER_PREFIX_BYTES || length > fileLength) {
+                throw new IOException("Invalid header length " + length);
+            }
+        } else if (magic == CACHE_MAGIC_V1) {
+            if (fileLength > Integer.MAX_VALUE) {
+                throw new IOException("Cache file too large: " + fileLength + " bytes");
+            }
+            length = (int) fileLength;
+        } else {
+            throw new IOException("unexpected cache header");
+        }
+        ByteBuffer header = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        prefix.flip();
+        header.put(prefix);
+        readFully(channel, header, HEADER_PREFIX_BYTES);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Fills the remainder of the buffer from the channel, starting at the given position.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count == -1) {
+                throw new EOFException();
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Applies the bulk changes made while loading to an entry that was just loaded.
+     * Must be called with {@link #mIndexLock} held.
+     * @param invalidations Receives the new expire time if the entry was invalidated.
+     * @return True if the entry was removed, in which case its file is deleted.
+     */
+    private boolean applyBulkChanges(CacheHeader entry, Map<String, Long> invalidations) {
+        BulkChange change = getBulkChangeWhileLoading(entry.key);
+        if (change == null) {
+            return false;
+        }
+        if (change.remove) {
+            new File(mRootDirectory, entry.fileName).delete();
+            return true;
+        }
+        invalidations.put(entry.key, change.expireTime);
+        return false;
+    }
+
+    /**
+     * Returns the bulk change made while loading that decides what happens to the key: a
+     * removal if any applies, otherwise the latest invalidation. Null if none applies or
+     * the index is not loading. Must be called with {@link #mIndexLock} held.
+     */
+    private BulkChange getBulkChangeWhileLoading(String key) {
+        if (mBulkChangesWhileLoading == null) {
+            return null;
+        }
+        BulkChange result = null;
+        for (BulkChange change : mBulkChangesWhileLoading) {
+            if (CacheKeys.matches(key, change.prefix, change.pattern)) {
+                if (change.remove) {
+                    return change;
+                }
+                result = change;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves entries stored in the flat layout to their shard directory and indexes them.
+     * Must be called with {@link #mIndexLock} held, before the loading state is cleared.
+     */
+    private void migrateLegacyFiles(Map<File, CacheHeader> legacyFiles,
+            Map<String, Long> invalidations) {
+        if (legacyFiles.isEmpty()) {
+            return;
+        }
+        int migrated = 0;
+        for (Map.Entry<File, CacheHeader> legacy : legacyFiles.entrySet()) {
+            File file = legacy.getKey();
+            CacheHeader entry = legacy.getValue();
+            if (mClearedWhileLoading || mTouchedWhileLoading.contains(entry.key)) {
+                file.delete();
+                continue;
+            }
+            entry.fileName = getFilenameForKey(entry.key);
+            File target = new File(mRootDirectory, entry.fileName);
+            target.getParentFile().mkdirs();
+            if (file.renameTo(target)) {
+                if (applyBulkChanges(entry, invalidations)) {
+                    continue;
+                }
+                putEntry(entry.key, entry);
+                migrated++;
+            } else {
+                file.delete();
+            }
+        }
+        VolleyLog.d("Migrated %d of %d cache entries to the sharded layout",
+                migrated, legacyFiles.size());
+    }
+
+    /**
+     * Moves everything in the root directory but the journal into a new trash directory.
+     * Files that can't be moved are deleted right away.
+     */
+    private void moveContentsToTrash() {
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        File trash = null;
+        for (File file : files) {
+            String name = file.getName();
+            if (DiskCacheJournal.isJournalFile(name) || name.startsWith(TRASH_PREFIX)) {
+                continue;
+            }
+            if (trash == null) {
+                trash = createTrashDirectory();
+            }
+            if (trash == null || !file.renameTo(new File(trash, name))) {
+                deleteContents(file);
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Creates an empty trash directory with a name not used yet.
+     * @return The directory, or null if it couldn't be created.
+     */
+    private File createTrashDirectory() {
+        long generation = System.currentTimeMillis();
+        for (int attempt = 0; attempt < 16; attempt++) {
+            File trash = new File(mRootDirectory, TRASH_PREFIX + (generation + attempt));
+            if (trash.mkdir()) {
+                return trash;
+            }
+        }
+        VolleyLog.e("Unable to create trash directory in %s", mRootDirectory.getAbsolutePath());
+        return null;
+    }
+
+    /**
+     * True if the root directory holds trash left by a clear that was interrupted.
+     */
+    private boolean hasTrash() {
+        String[] names = mRootDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(TRASH_PREFIX)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes every trash directory on the maintenance thread. Only that thread deletes
+     * trash, and a newer clear just leaves more of it for the next run.
+     */
+    private void scheduleTrashDeletion() {
+        getMaintenanceExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = mRootDirectory.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    if (file.getName().startsWith(TRASH_PREFIX)) {
+                        deleteContents(file);
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Recursively deletes everything inside the given directory.
+     */
+    private static void deleteContents(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleteContents(file);
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Rewrites the journal on a background thread once enough of it is redundant.
+     * Must be called with {@link #mIndexLock} held.
+     */
+    private void scheduleCompactionIfNeeded() {
+        if (mCompactionScheduled || !mJournal.needsCompaction(mEntries.size())) {
+            return;
+        }
+        mCompactionScheduled = true;
+        getMaintenanceExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                DiskCacheJournal.Rebuild rebuild;
+                synchronized (mIndexLock) {
+                    mCompactionScheduled = false;
+                    rebuild = mJournal.startRebuild(mEntries.values());
+                }
+                writeJournal(rebuild);
+            }
+        });
+    }
+
+    /**
+     * Rewrites the journal from the index on the maintenance thread. Must be called with
+     * {@link #mIndexLock} held.
+     */
+    private void scheduleJournalRebuild() {
+        final DiskCacheJournal.Rebuild rebuild = mJournal.startRebuild(mEntries.values());
+        getMaintenanceExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                writeJournal(rebuild);
+            }
+        });
+    }
+
+    /**
+     * Writes a rebuilt journal without holding {@link #mIndexLock}, then swaps it in under
+     * the lock. Must be called on the maintenance thread.
+     */
+    private void writeJournal(DiskCacheJournal.Rebuild rebuild) {
+        mJournal.write(rebuild);
+        synchronized (mIndexLock) {
+            mJournal.swap(rebuild);
+        }
+    }
+
+    /**
+     * Returns the single low-priority thread used for cache housekeeping.
+     */
+    private ExecutorService getMaintenanceExecutor() {
+        synchronized (mIndexLock) {
+            if (mMaintenanceExecutor == null) {
+                mMaintenanceExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "volley-disk-cache");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+            }
+            return mMaintenanceExecutor;
+        }
+    }
+
+    /**
+     * Invalidates every entry whose key starts with the given prefix. The keys are looked
+     * up in a sorted index, so this takes time proportional to the number of matches.
+     * @param prefix Key prefix
+     * @param expireTime The new expireTime
+     */
+    public void invalidatePrefix(String prefix, long expireTime) {
+        for (String key : findMatching(new BulkChange(prefix, null, false, expireTime))) {
+            invalidate(key, expireTime);
+        }
+    }
+
+    /**
+     * Removes every entry whose key starts with the given prefix and matches the pattern.
+     * The keys with the prefix are looked up in a sorted index, so this takes time
+     * proportional to their number.
+     * @param prefix Key prefix
+     * @param pattern Pattern the whole key must match, or null for every key with the prefix
+     */
+    public void removeMatching(String prefix, Pattern pattern) {
+        for (String key : findMatching(new BulkChange(prefix, pattern, true, 0))) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Returns the indexed keys the change applies to. While the index is loading, also
+     * records the change for the entries that are not indexed yet.
      */
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+    private List<String> findMatching(BulkChange change) {
+        List<String> keys = new ArrayList<String>();
+        synchronized (mIndexLock) {
+            if (mBulkChangesWhileLoading != null) {
+                mBulkChangesWhileLoading.add(change);
+            }
+            for (String key : mSortedKeys.tailSet(change.prefix)) {
+                if (!key.startsWith(change.prefix)) {
+                    break;
+                }
+                if (change.pattern == null || change.pattern.matcher(key).matches()) {
+                    keys.add(key);
+                }
             }
         }
-        mEntries.clear();
-        mTotalSize = 0;
-        VolleyLog.d("Cache cleared.");
+        return keys;
     }
 
     /**
-     * Returns the cache entry with the specified key if it exists, null otherwise.
+     * Invalidates an entry in the cache.
+     * @param key Cache key
+     * @param expireTime The new expireTime
      */
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
-            return null;
-        }
-
-        File file = getFileForKey(key);
-        CountingInputStream cis = null;
+    public void invalidate(String key, long expireTime) {
+        ReentrantReadWriteLock.WriteLock lock = getStripe(key).writeLock();
+        lock.lock();
         try {
-            cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
-        } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
-        } finally {
-            if (cis != null) {
-                try {
-                    cis.close();
-                } catch (IOException ioe) {
+            boolean indexed;
+            boolean loading;
+            synchronized (mIndexLock) {
+                indexed = mEntries.containsKey(key);
+                loading = mTouchedWhileLoading != null;
+            }
+            // While the index is loading the entry may be on disk without being indexed
+            // yet; the loader would index it with its old expire time.
+            if (!indexed && !(loading && indexUnindexed(key))) {
+                return;
+            }
+            File file = getFileForKey(key);
+            Entry entry;
+            try {
+                if (writeExpireTime(file, expireTime)) {
+                    synchronized (mIndexLock) {
+                        CacheHeader e = mEntries.get(key);
+                        if (e != null) {
+                            e.expireTime = expireTime;
+                            mJournal.markRedundant();
+                            mJournal.appendPut(e);
+                            scheduleCompactionIfNeeded();
+                        }
+                    }
+                    return;
                 }
+                // Files of the original format have no fixed layout; rewrite them.
+                entry = readEntry(file, key, null);
+            } catch (IOException e) {
+                onReadFailure(file, e);
+                removeLocked(key);
+                return;
+            }
+            if (Entry.invalidate(entry, expireTime)) {
+                writeLocked(key, entry);
             }
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Initializes the DiskCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Indexes an entry that is not in the index yet from the header of its file, and
+     * marks it touched so the loading index does not override it. Must be called with
+     * the key's stripe held for writing.
+     * @return True if the entry is now indexed.
      */
-    public synchronized void initialize() {
-        if (!mRootDirectory.exists()) {
-            if (!mRootDirectory.mkdirs()) {
-                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
-            }
-            return;
+    private boolean indexUnindexed(String key) {
+        File file = getFileForKey(key);
+        if (!file.exists()) {
+            return false;
         }
-
-        File[] files = mRootDirectory.listFiles();
-        if (files == null) {
-            return;
+        CacheHeader header = readHeader(file, new ArrayList<File>());
+        if (header == null || !key.equals(header.key)) {
+            return false;
         }
-        for (File file : files) {
-            FileInputStream fis = null;
-            try {
-                fis = new FileInputStream(file);
-                CacheHeader entry = CacheHeader.readHeader(fis);
-				if (entry.isExpired()) {
-					file.delete();
-				} else {
-					entry.size = file.length();
-					putEntry(entry.key, entry);
-				}
-            } catch (IOException e) {
-                if (file != null) {
-                   file.delete();
+        header.fileName = getFilenameForKey(key);
+        synchronized (mIndexLock) {
+            if (mEntries.containsKey(key)) {
+                return true;
+            }
+            if (mTouchedWhileLoading == null) {
+                // The loader finished meanwhile and found the entry stale.
+                return false;
+            }
+            BulkChange change = getBulkChangeWhileLoading(key);
+            if (change != null) {
+                if (change.remove) {
+                    // Left for the loader, which deletes the file.
+                    return false;
                 }
-            } finally {
-                try {
-                    if (fis != null) {
-                        fis.close();
-                    }
-                } catch (IOException ignored) { }
+                header.expireTime = change.expireTime;
             }
+            mTouchedWhileLoading.add(key);
+            putEntry(key, header);
+            return true;
         }
     }
 
     /**
-     * Invalidates an entry in the cache.
-     * @param key Cache key
-     * @param expireTime The new expireTime
+     * Overwrites the expire time in the header of the given file, and the header checksum
+     * covering it, without touching the rest of it.
+     * @return False if the file uses the original format, which has no fixed offset for
+     *     the expire time.
      */
-    public synchronized void invalidate(String key, long expireTime) {
-        Entry entry = get(key);
-        if (Entry.invalidate(entry, expireTime)) {
-            put(key, entry);
+    private boolean writeExpireTime(File file, long expireTime) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = readHeaderBytes(channel);
+            if (header.getInt(0) == CACHE_MAGIC_V1) {
+                return false;
+            }
+            // Verifies the header, so that a damaged one doesn't get a valid checksum.
+            CacheHeader.readHeader(header);
+            header.putLong(EXPIRE_TIME_OFFSET, expireTime);
+            header.putInt(HEADER_CHECKSUM_OFFSET,
+                    headerChecksum(header.array(), 0, header.limit()));
+            ByteBuffer buffer = ByteBuffer.wrap(header.array(), EXPIRE_TIME_OFFSET,
+                    HEADER_LENGTH_OFFSET - EXPIRE_TIME_OFFSET);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            commit(raf.getFD());
+            return true;
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException ignored) { }
         }
     }
 
     /**
      * Puts the entry with the specified key into the cache.
      */
-    public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
+    public void put(String key, Entry entry) {
+        markTouched(key);
+        ReentrantReadWriteLock.WriteLock lock = getStripe(key).writeLock();
+        lock.lock();
+        try {
+            writeLocked(key, entry);
+        } finally {
+            lock.unlock();
+        }
+        mStats.recordPut(entry.getSize());
+    }
+
+    /**
+     * Writes the entry's file and indexes it. Must be called with the key's stripe
+     * held for writing.
+     *
+     * <p>The entry is written to a temporary file next to its final location and renamed
+     * over it once complete, so readers and a restarted cache only ever see either the
+     * previous entry or the new one in full.</p>
+     */
+    private void writeLocked(String key, Entry entry) {
         File file = getFileForKey(key);
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        FileOutputStream fos = null;
         try {
-            FileOutputStream fos = new FileOutputStream(file);
+            fos = openForWrite(tmpFile);
+            OutputStream os = new BufferedOutputStream(fos);
             CacheHeader e = new CacheHeader(key, entry);
-            e.writeHeader(fos);
-            fos.write(entry.data);
+            e.fileName = getFilenameForKey(key);
+            byte[] data = entry.data;
+            if (mCompressionEnabled && shouldCompress(entry)) {
+                byte[] compressed = deflate(data);
+                if (compressed != null) {
+                    data = compressed;
+                    e.codec = CODEC_DEFLATE;
+                }
+            }
+            e.checksum = crc32(data);
+            e.writeHeader(os);
+            os.write(data);
+            os.flush();
+            // Account for what the entry actually takes on disk, as the directory scan does.
+            e.size = fos.getChannel().position();
+            commit(fos.getFD());
             fos.close();
-            putEntry(key, e);
+            fos = null;
+            if (!tmpFile.renameTo(file)) {
+                // Some filesystems refuse to rename over an existing file.
+                file.delete();
+                if (!tmpFile.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmpFile);
+                }
+            }
+            // The index only needs the headers back when reading the entry from disk.
+            e.responseHeaders = null;
+            synchronized (mIndexLock) {
+                if (mEntries.containsKey(key)) {
+                    mJournal.markRedundant();
+                }
+                putEntry(key, e);
+                mJournal.appendPut(e);
+                scheduleCompactionIfNeeded();
+                schedulePruneIfNeeded();
+            }
             return;
         } catch (IOException e) {
+            VolleyLog.d("%s: %s", tmpFile.getAbsolutePath(), e.toString());
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ignored) { }
+            }
         }
-        boolean deleted = file.delete();
+        boolean deleted = tmpFile.delete();
         if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+            VolleyLog.d("Could not clean up file %s", tmpFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Gets the written data onto the disk as required by the current {@link Durability}.
+     */
+    private void commit(FileDescriptor fd) throws IOException {
+        if (mDurability == Durability.SYNC) {
+            fd.sync();
         }
     }
 
     /**
      * Removes the specified key from the cache if it exists.
      */
-    public synchronized void remove(String key) {
+    public void remove(String key) {
+        markTouched(key);
+        ReentrantReadWriteLock.WriteLock lock = getStripe(key).writeLock();
+        lock.lock();
+        try {
+            removeLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the specified key if it is still indexed with the given header, i.e. it
+     * was not rewritten since the header was looked up.
+     */
+    private void removeIfSame(String key, CacheHeader expected) {
+        ReentrantReadWriteLock.WriteLock lock = getStripe(key).writeLock();
+        lock.lock();
+        try {
+            synchronized (mIndexLock) {
+                if (mEntries.get(key) != expected) {
+                    return;
+                }
+            }
+            removeLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the key's file and drops it from the index. Must be called with the
+     * key's stripe held for writing.
+     */
+    private void removeLocked(String key) {
         boolean deleted = getFileForKey(key).delete();
 
 		// Removes the entry identified by 'key' from the cache.
-		CacheHeader entry = mEntries.get(key);
-		if (entry != null) {
-			mTotalSize -= entry.size;
-			mEntries.remove(key);
+		synchronized (mIndexLock) {
+			if (removeEntry(key) != null) {
+				mJournal.appendRemove(key);
+				scheduleCompactionIfNeeded();
+			}
 		}
 
         if (!deleted) {
@@ -209,15 +1596,64 @@ public class DiskCache implements Cache {
     }
 
     /**
-     * Creates a pseudo-unique filename for the specified cache key.
+     * Remembers that the given key changed while the index is loading.
+     */
+    private void markTouched(String key) {
+        synchronized (mIndexLock) {
+            if (mTouchedWhileLoading != null) {
+                mTouchedWhileLoading.add(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the lock stripe guarding file I/O for the given key.
+     */
+    private ReentrantReadWriteLock getStripe(String key) {
+        int h = key.hashCode();
+        // Spread the hash so that keys differing only in their high bits use different stripes.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return mStripes[h & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * Opens the file for writing, creating its shard directory on first use.
+     */
+    private static FileOutputStream openForWrite(File file) throws FileNotFoundException {
+        try {
+            return new FileOutputStream(file);
+        } catch (FileNotFoundException e) {
+            if (!file.getParentFile().mkdirs()) {
+                throw e;
+            }
+            return new FileOutputStream(file);
+        }
+    }
+
+    /**
+     * Creates a unique filename for the specified cache key: the hex MD5 digest of the
+     * key, below one shard directory level per leading digit.
      * @param key The key to generate a file name for.
-     * @return A pseudo-unique filename.
+     * @return The filename, relative to the root directory.
      */
     private String getFilenameForKey(String key) {
-        int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+        byte[] digest;
+        try {
+            digest = sDigest.get().digest(key.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        StringBuilder name = new StringBuilder(hex.length + SHARD_DEPTH * 2);
+        for (int i = 0; i < SHARD_DEPTH; i++) {
+            name.append(hex[i]).append(File.separatorChar);
+        }
+        return name.append(hex).toString();
     }
 
     /**
@@ -228,73 +1664,335 @@ public class DiskCache implements Cache {
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
-     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * Queues a prune pass on the maintenance thread once the cache grows past its high
+     * watermark. Must be called with {@link #mIndexLock} held.
      */
-    private void pruneIfNeeded(int neededSpace) {
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+    private void schedulePruneIfNeeded() {
+        if (mPruneScheduled || !isAboveHighWatermark()) {
             return;
         }
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("Pruning old cache entries.");
+        mPruneScheduled = true;
+        getMaintenanceExecutor().execute(new PrunePass());
+    }
+
+    /**
+     * True if the cache or one of its partitions has grown past its high watermark. Must
+     * be called with {@link #mIndexLock} held.
+     */
+    private boolean isAboveHighWatermark() {
+        for (Partition partition : mPartitions.values()) {
+            if (partition.size > partition.highWatermarkBytes) {
+                return true;
+            }
+        }
+        return isAbove(mHighWatermarkBytes, mHighWatermarkEntries);
+    }
+
+    /**
+     * True if the cache or one of its partitions is still above its low watermark. Must
+     * be called with {@link #mIndexLock} held.
+     */
+    private boolean isAboveLowWatermark() {
+        for (Partition partition : mPartitions.values()) {
+            if (partition.size > partition.lowWatermarkBytes) {
+                return true;
+            }
+        }
+        return isAbove(mLowWatermarkBytes, mLowWatermarkEntries);
+    }
+
+    /**
+     * Picks the next entry to prune: first from partitions above their low watermark,
+     * then from the entries outside partitions with a quota, and only once there are none
+     * of those left from the largest partition. Must be called with {@link #mIndexLock}
+     * held.
+     * @return The key, or null if no policy has one to offer.
+     */
+    private String nextVictim() {
+        Partition largest = null;
+        for (Partition partition : mPartitions.values()) {
+            if (partition.size > partition.lowWatermarkBytes) {
+                String key = partition.policy.nextVictim();
+                if (key != null) {
+                    return key;
+                }
+            }
+            if (largest == null || partition.size > largest.size) {
+                largest = partition;
+            }
+        }
+        if (!isAbove(mLowWatermarkBytes, mLowWatermarkEntries)) {
+            return null;
+        }
+        String key = mEvictionPolicy.nextVictim();
+        if (key == null && largest != null) {
+            key = largest.policy.nextVictim();
         }
+        return key;
+    }
+
+    /**
+     * True if the cache holds more than the given number of bytes or entries. Must be
+     * called with {@link #mIndexLock} held.
+     */
+    private boolean isAbove(long bytes, int entries) {
+        return mTotalSize > bytes || mEntries.size() > entries;
+    }
 
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
+    /**
+     * Evicts entries until the cache and each of its partitions are back under their low
+     * watermark.
+     * The pass deletes at most {@link #PRUNE_BATCH_SIZE} files at a time and requeues
+     * itself in between, so it never holds the index for long and lets journal
+     * compaction interleave.
+     */
+    private class PrunePass implements Runnable {
+        private int mFilesDeleted;
+        private long mBytesReclaimed;
+        /** Time spent in the batches so far, excluding the time spent queued in between. */
+        private long mDurationMs;
 
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-					   e.key, getFilenameForKey(e.key));
+        @Override
+        public void run() {
+            long batchStart = SystemClock.elapsedRealtime();
+            boolean more = pruneBatch();
+            mDurationMs += SystemClock.elapsedRealtime() - batchStart;
+            if (more) {
+                getMaintenanceExecutor().execute(this);
+                return;
+            }
+            long duration = mDurationMs;
+            mStats.recordPrune(mFilesDeleted, duration);
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("pruned %d files, %d bytes, %d ms",
+                        mFilesDeleted, mBytesReclaimed, duration);
+            }
+            PruneListener listener = mPruneListener;
+            if (listener != null) {
+                listener.onPrune(mFilesDeleted, mBytesReclaimed, duration);
+            }
+        }
+
+        /**
+         * Evicts one batch of entries.
+         * @return True if the cache is still above its low watermark.
+         */
+        private boolean pruneBatch() {
+            List<CacheHeader> victims = new ArrayList<CacheHeader>();
+            boolean more;
+            boolean stalled = false;
+            synchronized (mIndexLock) {
+                while (isAboveLowWatermark() && victims.size() < PRUNE_BATCH_SIZE) {
+                    String key = nextVictim();
+                    CacheHeader e = key != null ? removeEntry(key) : null;
+                    if (e == null) {
+                        // The policy has nothing (indexed) left to offer; don't spin on it.
+                        stalled = true;
+                        break;
+                    }
+                    mJournal.appendRemove(e.key);
+                    victims.add(e);
+                    mBytesReclaimed += e.size;
+                }
+                more = !stalled && isAboveLowWatermark();
+                if (!more) {
+                    mPruneScheduled = false;
+                }
+                scheduleCompactionIfNeeded();
+            }
+
+            // Only this key's stripe is taken, and nothing else is held, so this can't
+            // deadlock with writers.
+            for (CacheHeader e : victims) {
+                ReentrantReadWriteLock.WriteLock lock = getStripe(e.key).writeLock();
+                lock.lock();
+                try {
+                    synchronized (mIndexLock) {
+                        // The key was written again after being chosen; keep the new file.
+                        if (mEntries.containsKey(e.key)) {
+                            continue;
+                        }
+                    }
+                    if (getFileForKey(e.key).delete()) {
+                        mFilesDeleted++;
+                    } else {
+                        VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                                e.key, getFilenameForKey(e.key));
+                    }
+                } finally {
+                    lock.unlock();
+                }
             }
-            iterator.remove();
-            prunedFiles++;
+            return more;
+        }
+    }
+
+    /**
+     * Reads back every entry indexed when the pass started, removing those whose data
+     * no longer matches its checksum. Like {@link PrunePass}, it verifies
+     * {@link #SCRUB_BATCH_SIZE} entries at a time and requeues itself in between.
+     */
+    private class ScrubPass implements Runnable {
+        private List<String> mKeys;
+        private int mNext;
 
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
+        @Override
+        public void run() {
+            if (mKeys == null) {
+                synchronized (mIndexLock) {
+                    mKeys = new ArrayList<String>(mEntries.keySet());
+                }
+            }
+            int end = Math.min(mNext + SCRUB_BATCH_SIZE, mKeys.size());
+            for (; mNext < end; mNext++) {
+                verify(mKeys.get(mNext));
+            }
+            if (mNext < mKeys.size()) {
+                getMaintenanceExecutor().execute(this);
+                return;
+            }
+            synchronized (mIndexLock) {
+                mScrubScheduled = false;
             }
         }
 
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms",
-					prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+        private void verify(String key) {
+            ReentrantReadWriteLock.ReadLock lock = getStripe(key).readLock();
+            CacheHeader entry;
+            lock.lock();
+            try {
+                synchronized (mIndexLock) {
+                    entry = mEntries.get(key);
+                }
+                if (entry == null) {
+                    return;
+                }
+                File file = getFileForKey(key);
+                try {
+                    readEntry(file, key, null);
+                    return;
+                } catch (IOException e) {
+                    if (!(e instanceof CorruptEntryException)) {
+                        // Unreadable for another reason; get() will deal with it.
+                        return;
+                    }
+                    onReadFailure(file, e);
+                }
+            } finally {
+                lock.unlock();
+            }
+            removeIfSame(key, entry);
         }
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
+     * Puts the entry with the specified key into the cache. Must be called with
+     * {@link #mIndexLock} held.
      * @param key The key to identify the entry by.
      * @param entry The entry to cache.
      */
     private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            mTotalSize += entry.size;
-        } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
+        CacheHeader oldEntry = mEntries.get(key);
+        if (oldEntry != null && getPartition(oldEntry) != getPartition(entry)) {
+            // Moving to another partition; the old policy must forget the key.
+            removeEntry(key);
+            oldEntry = null;
+        }
+        Partition partition = getPartition(entry);
+        long delta = oldEntry == null ? entry.size : entry.size - oldEntry.size;
+        mTotalSize += delta;
+        if (partition != null) {
+            partition.size += delta;
         }
         mEntries.put(key, entry);
+        mSortedKeys.add(key);
+        getEvictionPolicy(entry).onInsert(key, entry.size);
+    }
+
+    /**
+     * Drops the key from the index. Must be called with {@link #mIndexLock} held.
+     * @return The removed header, or null if the key was not indexed.
+     */
+    private CacheHeader removeEntry(String key) {
+        CacheHeader entry = mEntries.remove(key);
+        if (entry != null) {
+            mTotalSize -= entry.size;
+            Partition partition = getPartition(entry);
+            if (partition != null) {
+                partition.size -= entry.size;
+            }
+            mSortedKeys.remove(key);
+            getEvictionPolicy(entry).onRemove(key);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the partition with a quota the entry belongs to, or null. Must be called
+     * with {@link #mIndexLock} held.
+     */
+    private Partition getPartition(CacheHeader entry) {
+        return entry.partition != null ? mPartitions.get(entry.partition) : null;
+    }
+
+    /**
+     * Returns the policy tracking the entry. Must be called with {@link #mIndexLock} held.
+     */
+    private EvictionPolicy getEvictionPolicy(CacheHeader entry) {
+        Partition partition = getPartition(entry);
+        return partition != null ? partition.policy : mEvictionPolicy;
+    }
+
+    /**
+     * Returns the CRC32 of the given bytes.
+     */
+    static int crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the CRC32 of a header of the current format, taking its checksum field
+     * as zero.
+     * @param header Array holding the header.
+     * @param offset Index of the header in the array.
+     * @param length The header length.
+     */
+    static int headerChecksum(byte[] header, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(header, offset, HEADER_CHECKSUM_OFFSET);
+        crc.update(new byte[4], 0, 4);
+        crc.update(header, offset + HEADER_LENGTH_OFFSET, length - HEADER_LENGTH_OFFSET);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Thrown when an entry's file is readable but its content is damaged.
+     */
+    static class CorruptEntryException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptEntryException(String message) {
+            super(message);
+        }
     }
 
     /**
      * Reads the contents of an InputStream into a byte[].
      * */
-    private static byte[] streamToBytes(InputStream in, int length) throws IOException {
-        byte[] bytes = new byte[length];
+    static byte[] streamToBytes(InputStream in, long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[(int) length];
         int count;
         int pos = 0;
-        while (pos < length && ((count = in.read(bytes, pos, length - pos)) != -1)) {
+        while (pos < length && ((count = in.read(bytes, pos, bytes.length - pos)) != -1)) {
             pos += count;
         }
         if (pos != length) {
-            throw new IOException("Expected " + length + " bytes, read " + pos + " bytes");
+            throw new EOFException("Expected " + length + " bytes, read " + pos + " bytes");
         }
         return bytes;
     }
@@ -319,9 +2017,30 @@ public class DiskCache implements Cache {
 
 		/** Headers from the response resulting in this cache entry. */
         public Map<String, String> responseHeaders;
-        
-        
-        private CacheHeader() {}
+
+        /** Codec the entry data is stored with, one of the {@code CODEC_} constants. */
+        public int codec = CODEC_NONE;
+
+        /** Length of the entry data once decoded, or -1 if not recorded. */
+        public int dataLength = -1;
+
+        /**
+         * CRC32 of the entry data as stored, i.e. after encoding. Not computed by the
+         * constructor, as it depends on the codec the writer picks.
+         */
+        public int checksum;
+
+        /** False for files written before checksums were recorded. */
+        public boolean hasChecksum;
+
+        /** The partition the entry is accounted to, or null for none. */
+        public String partition;
+
+        /** Path of the file holding this entry, relative to the root directory. (This is
+         * not serialized to the entry header; it is only recorded in the journal.) */
+        public String fileName;
+
+        CacheHeader() {}
 
         /**
          * Instantiates a new CacheHeader object
@@ -331,28 +2050,59 @@ public class DiskCache implements Cache {
         public CacheHeader(String key, Entry entry) {
             this.key = key;
 			this.size = entry.data.length;
+			this.dataLength = entry.data.length;
+			this.hasChecksum = true;
 			this.expireTime = entry.expireTime;
 			this.charset = entry.charset;
 			this.responseHeaders = entry.responseHeaders;
+			this.partition = entry.partition;
 		}
 
         /**
-         * Reads the header off of an InputStream and returns a CacheHeader object.
-         * @param is The InputStream to read from.
+         * Reads the header off of a little-endian ByteBuffer, leaving the buffer
+         * positioned at the start of the entry data. For files of the current format the
+         * buffer must be backed by an array and hold the whole header, as returned by
+         * {@link DiskCache#readHeaderBytes(FileChannel)}; the header checksum is verified.
+         * @param buffer The buffer to read from.
          * @throws IOException
          */
-        public static CacheHeader readHeader(InputStream is) throws IOException {
-            CacheHeader entry = new CacheHeader();
-            int magic = readInt(is);
-            if (magic != CACHE_MAGIC) {
-                // don't bother deleting, it'll get pruned eventually
-                throw new IOException();
-            }
-            entry.key = readString(is);
-            entry.expireTime = readLong(is);
-            entry.charset = readString(is);
-            entry.responseHeaders = readStringStringMap(is);
-            return entry;
+        public static CacheHeader readHeader(ByteBuffer buffer) throws IOException {
+            try {
+                CacheHeader entry = new CacheHeader();
+                int start = buffer.position();
+                int magic = buffer.getInt();
+                if (magic == CACHE_MAGIC) {
+                    entry.expireTime = buffer.getLong();
+                    int headerChecksum = buffer.getInt();
+                    int headerLength = buffer.getInt();
+                    entry.checksum = buffer.getInt();
+                    entry.hasChecksum = true;
+                    entry.codec = buffer.getInt();
+                    entry.dataLength = buffer.getInt();
+                    entry.key = readString(buffer);
+                    entry.partition = toPartition(readString(buffer));
+                    entry.charset = readString(buffer);
+                    entry.responseHeaders = readStringStringMap(buffer);
+                    if (buffer.position() - start != headerLength) {
+                        throw new IOException("Header length mismatch");
+                    }
+                    if (headerChecksum(buffer.array(), buffer.arrayOffset() + start, headerLength)
+                            != headerChecksum) {
+                        throw new CorruptEntryException("Header checksum mismatch");
+                    }
+                } else if (magic == CACHE_MAGIC_V1) {
+                    entry.key = readString(buffer);
+                    entry.expireTime = buffer.getLong();
+                    entry.charset = readString(buffer);
+                    entry.responseHeaders = readStringStringMap(buffer);
+                } else {
+                    // don't bother deleting, it'll get pruned eventually
+                    throw new IOException();
+                }
+                return entry;
+            } catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
         }
 
         /**
@@ -364,6 +2114,7 @@ public class DiskCache implements Cache {
 			e.expireTime = expireTime;
 			e.charset = charset;
 			e.responseHeaders = responseHeaders;
+			e.partition = partition;
 			return e;
         }
 
@@ -372,17 +2123,23 @@ public class DiskCache implements Cache {
 			return expireTime < System.currentTimeMillis();
 		}
 
+        /** Returns the partition as stored on disk, where no partition is empty. */
+        static String fromPartition(String partition) {
+            return partition != null ? partition : "";
+        }
+
+        /** Returns the partition stored on disk as {@link #fromPartition(String)}. */
+        static String toPartition(String stored) {
+            return stored.length() > 0 ? stored : null;
+        }
+
 
         /**
          * Writes the contents of this CacheHeader to the specified OutputStream.
          */
         public boolean writeHeader(OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                writeLong(os, expireTime);
-                writeString(os, charset);
-                writeStringStringMap(responseHeaders, os);
+                os.write(toByteArray());
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -390,31 +2147,29 @@ public class DiskCache implements Cache {
                 return false;
             }
         }
-    }
-
-    private static class CountingInputStream extends FilterInputStream {
-        private int bytesRead = 0;
-
-        private CountingInputStream(InputStream in) {
-            super(in);
-        }
-
-        @Override
-        public int read() throws IOException {
-            int result = super.read();
-            if (result != -1) {
-                bytesRead++;
-            }
-            return result;
-        }
 
-        @Override
-        public int read(byte[] buffer, int offset, int count) throws IOException {
-            int result = super.read(buffer, offset, count);
-            if (result != -1) {
-                bytesRead += result;
-            }
-            return result;
+        /**
+         * Returns this CacheHeader as stored in the current format.
+         */
+        byte[] toByteArray() throws IOException {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+            writeInt(os, CACHE_MAGIC);
+            writeLong(os, expireTime);
+            // The header checksum and length, filled in below once known.
+            writeInt(os, 0);
+            writeInt(os, 0);
+            writeInt(os, checksum);
+            writeInt(os, codec);
+            writeInt(os, dataLength);
+            writeString(os, key);
+            writeString(os, fromPartition(partition));
+            writeString(os, charset);
+            writeStringStringMap(responseHeaders, os);
+            byte[] header = os.toByteArray();
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(HEADER_LENGTH_OFFSET, header.length);
+            buffer.putInt(HEADER_CHECKSUM_OFFSET, headerChecksum(header, 0, header.length));
+            return header;
         }
     }
 
@@ -484,8 +2239,17 @@ public class DiskCache implements Cache {
     }
 
     static String readString(InputStream is) throws IOException {
-        int n = (int) readLong(is);
-        byte[] b = streamToBytes(is, n);
+        byte[] b = streamToBytes(is, readLong(is));
+        return new String(b, "UTF-8");
+    }
+
+    static String readString(ByteBuffer buffer) throws IOException {
+        long n = buffer.getLong();
+        if (n < 0 || n > buffer.remaining()) {
+            throw new IOException("Invalid string length " + n);
+        }
+        byte[] b = new byte[(int) n];
+        buffer.get(b);
         return new String(b, "UTF-8");
     }
 
@@ -501,14 +2265,17 @@ public class DiskCache implements Cache {
         }
     }
 
-    static Map<String, String> readStringStringMap(InputStream is) throws IOException {
-        int size = readInt(is);
+    static Map<String, String> readStringStringMap(ByteBuffer buffer) throws IOException {
+        int size = buffer.getInt();
+        if (size < 0) {
+            throw new IOException("Invalid header count " + size);
+        }
         Map<String, String> result = (size == 0)
                 ? Collections.<String, String>emptyMap()
                 : new HashMap<String, String>(size);
         for (int i = 0; i < size; i++) {
-            String key = readString(is).intern();
-            String value = readString(is).intern();
+            String key = readString(buffer).intern();
+            String value = readString(buffer).intern();
             result.put(key, value);
         }
         return result;
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import com.android.volley.VolleyLog;
+import com.android.volley.cache.DiskCache.CacheHeader;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of the {@link DiskCache} index.
+ *
+ * <p>Every put and remove appends a small record (key, size, expire time, file name and
+ * partition), so the index can be rebuilt at startup by replaying one sequential file
+ * instead of opening every cache entry. The journal is rewritten from the live index once
+ * enough records have become redundant.</p>
+ *
+ * <p>Records are appended after the file operation they describe and are not synced, so
+ * after a crash the journal may miss the last changes or end in a torn record. A torn
+ * record is cut off on replay, and {@link DiskCache} reconciles the replayed index with
+ * the entry files actually on disk.</p>
+ *
+ * <p>Not thread safe; {@link DiskCache} serializes all access to it, except that
+ * {@link #replay(Map)} may run while the journal is not yet open for appending and
+ * {@link #write(Rebuild)} runs without the lock.</p>
+ */
+class DiskCacheJournal {
+
+    /** Name of the journal file inside the cache root directory. */
+    static final String JOURNAL_FILE = "journal";
+
+    /** Name of the journal being rebuilt before it replaces {@link #JOURNAL_FILE}. */
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    /** Magic number for current version of journal file format. */
+    private static final int JOURNAL_MAGIC = 0x20160104;
+
+    /** Record type for an entry written to the cache. */
+    private static final int OP_PUT = 1;
+
+    /** Record type for an entry removed from the cache. */
+    private static final int OP_REMOVE = 2;
+
+    /**
+     * Longest key or file name accepted on replay. Anything longer is a corrupt length
+     * field, which must not be trusted with an allocation.
+     */
+    private static final long MAX_STRING_BYTES = 1024 * 1024;
+
+    /** Minimum number of redundant records before a compaction is worth it. */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+
+    /** Open journal for appending, or null if the journal is not usable. */
+    private OutputStream mWriter;
+
+    /** Number of records in the journal that no longer describe a live entry. */
+    private int mRedundantOpCount;
+
+    /** The latest rebuild started, until it has been swapped in; null if none. */
+    private Rebuild mRebuild;
+
+    /**
+     * A rewrite of the journal from a copy of the index. The copy is written without
+     * holding the index lock; records appended in the meantime are kept aside and added
+     * to the new journal when it is swapped in.
+     */
+    static class Rebuild {
+        /** Copies of the index entries when the rebuild started. */
+        private final List<CacheHeader> mSnapshot;
+        /** Records appended since the rebuild started. */
+        private final ByteArrayOutputStream mTail = new ByteArrayOutputStream();
+        /** Redundant record count of the old journal when the rebuild started. */
+        private final int mRedundantAtStart;
+        /** The new journal while it is being written, or null once written or on failure. */
+        private FileOutputStream mFile;
+        private OutputStream mStream;
+
+        Rebuild(List<CacheHeader> snapshot, int redundantAtStart) {
+            mSnapshot = snapshot;
+            mRedundantAtStart = redundantAtStart;
+        }
+    }
+
+    /**
+     * @param directory The cache root directory the journal lives in.
+     */
+    DiskCacheJournal(File directory) {
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+    }
+
+    /** True if the given file name belongs to the journal rather than a cache entry. */
+    static boolean isJournalFile(String name) {
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name);
+    }
+
+    /**
+     * Replays the journal into the given map, in the order the records were written.
+     * The returned headers carry the key, size, expire time, file name and partition only.
+     * A record torn by a crash at the end of the journal is cut off.
+     * @param entries The map to fill, keyed by cache key.
+     * @throws IOException if the journal is missing or corrupt.
+     */
+    void replay(Map<String, CacheHeader> entries) throws IOException {
+        long journalLength = mJournalFile.length();
+        CountingInputStream is = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(mJournalFile)));
+        int opCount = 0;
+        long validLength;
+        try {
+            if (DiskCache.readInt(is) != JOURNAL_MAGIC) {
+                throw new IOException("unexpected journal header");
+            }
+            validLength = is.mCount;
+            int op;
+            while ((op = is.read()) != -1) {
+                String key;
+                CacheHeader entry = null;
+                try {
+                    key = readString(is, journalLength);
+                    if (op == OP_PUT) {
+                        entry = new CacheHeader();
+                        entry.key = key;
+                        entry.size = DiskCache.readLong(is);
+                        entry.expireTime = DiskCache.readLong(is);
+                        entry.fileName = readString(is, journalLength);
+                        entry.partition = CacheHeader.toPartition(readString(is, journalLength));
+                    } else if (op != OP_REMOVE) {
+                        throw new IOException("unexpected journal op " + op);
+                    }
+                } catch (EOFException e) {
+                    VolleyLog.d("Cache journal ends in a torn record at %d", validLength);
+                    break;
+                }
+                if (entry != null) {
+                    entries.put(key, entry);
+                } else {
+                    entries.remove(key);
+                }
+                opCount++;
+                validLength = is.mCount;
+            }
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ignored) { }
+        }
+        if (validLength < journalLength) {
+            // New records must not be appended after the torn one.
+            RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        mRedundantOpCount = opCount - entries.size();
+    }
+
+    /**
+     * Opens the journal for appending after a successful {@link #replay(Map)}.
+     */
+    void open() {
+        close();
+        try {
+            mWriter = new BufferedOutputStream(new FileOutputStream(mJournalFile, true));
+        } catch (IOException e) {
+            VolleyLog.d("Unable to open cache journal: %s", e.toString());
+            discard();
+        }
+    }
+
+    /**
+     * Records that the given entry was written to the cache.
+     */
+    void appendPut(CacheHeader entry) {
+        if (mRebuild != null) {
+            try {
+                writePut(mRebuild.mTail, entry);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+        if (mWriter == null) return;
+        try {
+            writePut(mWriter, entry);
+            mWriter.flush();
+        } catch (IOException e) {
+            VolleyLog.d("Unable to append to cache journal: %s", e.toString());
+            discard();
+        }
+    }
+
+    /**
+     * Records that the entry with the given key was removed from the cache.
+     */
+    void appendRemove(String key) {
+        if (mWriter == null && mRebuild == null) return;
+        mRedundantOpCount += 2;
+        if (mRebuild != null) {
+            try {
+                writeRemove(mRebuild.mTail, key);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+        if (mWriter == null) return;
+        try {
+            writeRemove(mWriter, key);
+            mWriter.flush();
+        } catch (IOException e) {
+            VolleyLog.d("Unable to append to cache journal: %s", e.toString());
+            discard();
+        }
+    }
+
+    /**
+     * Records that an existing entry was overwritten, leaving its previous record redundant.
+     */
+    void markRedundant() {
+        mRedundantOpCount++;
+    }
+
+    /**
+     * Returns true once enough records are redundant that a rebuild would meaningfully
+     * shrink the journal.
+     * @param liveCount Number of entries currently in the index.
+     */
+    boolean needsCompaction(int liveCount) {
+        return mWriter != null && mRebuild == null && mRedundantOpCount >= COMPACT_THRESHOLD
+                && mRedundantOpCount >= liveCount;
+    }
+
+    /**
+     * Starts rewriting the journal to hold exactly the given entries. Only copies them;
+     * the caller then passes the result to {@link #write(Rebuild)} and {@link #swap(Rebuild)}.
+     * A rebuild started later supersedes this one.
+     * @param entries The live index entries.
+     */
+    Rebuild startRebuild(Collection<CacheHeader> entries) {
+        List<CacheHeader> snapshot = new ArrayList<CacheHeader>(entries.size());
+        for (CacheHeader entry : entries) {
+            CacheHeader copy = new CacheHeader();
+            copy.key = entry.key;
+            copy.size = entry.size;
+            copy.expireTime = entry.expireTime;
+            copy.fileName = entry.fileName;
+            copy.partition = entry.partition;
+            snapshot.add(copy);
+        }
+        mRebuild = new Rebuild(snapshot, mRedundantOpCount);
+        return mRebuild;
+    }
+
+    /**
+     * Writes the entries copied by {@link #startRebuild(Collection)} to a temporary file.
+     * Does the bulk of the I/O of a rebuild, so it is the one step to call without
+     * holding the index lock. Rebuilds must be written one at a time.
+     */
+    void write(Rebuild rebuild) {
+        try {
+            rebuild.mFile = new FileOutputStream(mJournalFileTmp);
+            rebuild.mStream = new BufferedOutputStream(rebuild.mFile);
+            DiskCache.writeInt(rebuild.mStream, JOURNAL_MAGIC);
+            for (CacheHeader entry : rebuild.mSnapshot) {
+                writePut(rebuild.mStream, entry);
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Unable to rebuild cache journal: %s", e.toString());
+            closeQuietly(rebuild);
+        }
+    }
+
+    /**
+     * Appends the records kept aside since the rebuild started and swaps the new journal
+     * in for the current one. Does nothing if a later rebuild superseded this one. On
+     * failure the journal is discarded, so the next start falls back to a directory scan.
+     */
+    void swap(Rebuild rebuild) {
+        if (rebuild != mRebuild) {
+            closeQuietly(rebuild);
+            return;
+        }
+        mRebuild = null;
+        close();
+        try {
+            if (rebuild.mStream == null) {
+                throw new IOException("Rebuilt journal was not written");
+            }
+            rebuild.mTail.writeTo(rebuild.mStream);
+            rebuild.mStream.flush();
+            // The old journal is gone once renamed over, so the new one must be complete.
+            rebuild.mFile.getFD().sync();
+            rebuild.mStream.close();
+            rebuild.mStream = null;
+            if (!mJournalFileTmp.renameTo(mJournalFile)) {
+                throw new IOException("Unable to rename " + mJournalFileTmp);
+            }
+            mRedundantOpCount = Math.max(0, mRedundantOpCount - rebuild.mRedundantAtStart);
+            open();
+        } catch (IOException e) {
+            VolleyLog.d("Unable to rebuild cache journal: %s", e.toString());
+            closeQuietly(rebuild);
+            discard();
+        }
+    }
+
+    /**
+     * Closes the journal and deletes it from disk, forcing a directory scan on next start.
+     * A rebuild in progress can still write a fresh journal.
+     */
+    void discard() {
+        close();
+        mJournalFile.delete();
+        if (mRebuild == null) {
+            mJournalFileTmp.delete();
+        }
+    }
+
+    private void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException ignored) { }
+            mWriter = null;
+        }
+    }
+
+    private static void closeQuietly(Rebuild rebuild) {
+        if (rebuild.mStream != null) {
+            try {
+                rebuild.mStream.close();
+            } catch (IOException ignored) { }
+            rebuild.mStream = null;
+        }
+    }
+
+    private static void writePut(OutputStream os, CacheHeader entry) throws IOException {
+        os.write(OP_PUT);
+        DiskCache.writeString(os, entry.key);
+        DiskCache.writeLong(os, entry.size);
+        DiskCache.writeLong(os, entry.expireTime);
+        DiskCache.writeString(os, entry.fileName);
+        DiskCache.writeString(os, CacheHeader.fromPartition(entry.partition));
+    }
+
+    private static void writeRemove(OutputStream os, String key) throws IOException {
+        os.write(OP_REMOVE);
+        DiskCache.writeString(os, key);
+    }
+
+    /**
+     * Reads a string of a replayed record, checking its length before allocating it.
+     * @throws EOFException if the string runs past the end of the journal, as in a torn
+     *     record.
+     * @throws IOException if the length can't be that of a key or file name.
+     */
+    private static String readString(CountingInputStream is, long journalLength)
+            throws IOException {
+        long length = DiskCache.readLong(is);
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Invalid string length " + length + " at " + is.mCount);
+        }
+        if (length > journalLength - is.mCount) {
+            throw new EOFException("String of " + length + " bytes past the end of the journal");
+        }
+        return new String(DiskCache.streamToBytes(is, length), "UTF-8");
+    }
+
+    /** Counts the bytes read, to find where the last complete record ends. */
+    private static class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                mCount++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int result = super.read(buffer, offset, count);
+            if (result != -1) {
+                mCount += result;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+/**
+ * Decides which entry {@link DiskCache} evicts when it has to make room.
+ *
+ * <p>The cache reports every indexed key to the policy and asks it for victims while
+ * pruning. Implementations need not be thread safe; the cache serializes all calls.</p>
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called when a key is added to the cache, or replaced with a new entry.
+     * @param key The cache key.
+     * @param size Size of the entry in bytes.
+     */
+    public void onInsert(String key, long size);
+
+    /**
+     * Called when an indexed key is read.
+     */
+    public void onAccess(String key);
+
+    /**
+     * Called when a key leaves the cache, whether evicted, removed or expired.
+     */
+    public void onRemove(String key);
+
+    /**
+     * Returns the key that should be evicted next, or null if no key is tracked. The key
+     * stays tracked until {@link #onRemove(String)} is called for it.
+     */
+    public String nextVictim();
+
+    /**
+     * Forgets every key.
+     */
+    public void clear();
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * GreedyDual-Size-Frequency: a size-aware policy that favours small, frequently read
+ * entries.
+ *
+ * <p>Every entry gets the priority {@code L + frequency / size} and the lowest priority is
+ * evicted first. {@code L} is raised to the priority of each evicted entry, so entries
+ * that stop being read age out even if they were popular once.</p>
+ */
+public class GdsfEvictionPolicy implements EvictionPolicy {
+
+    private static class Node {
+        final String key;
+        long size;
+        int frequency;
+        double priority;
+        long tick;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Node> ORDER = new Comparator<Node>() {
+        @Override
+        public int compare(Node lhs, Node rhs) {
+            int result = Double.compare(lhs.priority, rhs.priority);
+            if (result != 0) {
+                return result;
+            }
+            if (lhs.tick != rhs.tick) {
+                return lhs.tick < rhs.tick ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    private final Map<String, Node> mNodes = new HashMap<String, Node>();
+
+    /** Tracked keys, lowest priority first. */
+    private final TreeSet<Node> mOrder = new TreeSet<Node>(ORDER);
+
+    /** The inflation value L; the priority of the last evicted entry. */
+    private double mInflation;
+
+    /** Logical clock breaking priority ties in favour of recently used entries. */
+    private long mTick;
+
+    @Override
+    public void onInsert(String key, long size) {
+        Node node = mNodes.get(key);
+        if (node == null) {
+            node = new Node(key);
+            mNodes.put(key, node);
+        } else {
+            mOrder.remove(node);
+        }
+        node.size = size;
+        touch(node);
+    }
+
+    @Override
+    public void onAccess(String key) {
+        Node node = mNodes.get(key);
+        if (node != null) {
+            mOrder.remove(node);
+            touch(node);
+        }
+    }
+
+    @Override
+    public void onRemove(String key) {
+        Node node = mNodes.remove(key);
+        if (node == null) {
+            return;
+        }
+        if (node == mOrder.first()) {
+            // Evicting the lowest priority entry ages everything that remains.
+            mInflation = node.priority;
+        }
+        mOrder.remove(node);
+    }
+
+    @Override
+    public String nextVictim() {
+        return mOrder.isEmpty() ? null : mOrder.first().key;
+    }
+
+    @Override
+    public void clear() {
+        mNodes.clear();
+        mOrder.clear();
+        mInflation = 0;
+    }
+
+    private void touch(Node node) {
+        node.frequency++;
+        node.priority = mInflation + (double) node.frequency / Math.max(node.size, 1);
+        node.tick = ++mTick;
+        mOrder.add(node);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Evicts the least frequently used entry, breaking ties by recency. Frequencies only
+ * count accesses since the key was inserted.
+ */
+public class LfuEvictionPolicy implements EvictionPolicy {
+
+    private static class Node {
+        final String key;
+        int frequency;
+        long lastAccess;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Node> ORDER = new Comparator<Node>() {
+        @Override
+        public int compare(Node lhs, Node rhs) {
+            if (lhs.frequency != rhs.frequency) {
+                return lhs.frequency < rhs.frequency ? -1 : 1;
+            }
+            if (lhs.lastAccess != rhs.lastAccess) {
+                return lhs.lastAccess < rhs.lastAccess ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    private final Map<String, Node> mNodes = new HashMap<String, Node>();
+
+    /** Tracked keys, least frequently used first. */
+    private final TreeSet<Node> mOrder = new TreeSet<Node>(ORDER);
+
+    /** Logical clock; every insert and access gets a unique tick. */
+    private long mTick;
+
+    @Override
+    public void onInsert(String key, long size) {
+        Node node = mNodes.get(key);
+        if (node == null) {
+            node = new Node(key);
+            mNodes.put(key, node);
+        } else {
+            mOrder.remove(node);
+        }
+        node.frequency++;
+        node.lastAccess = ++mTick;
+        mOrder.add(node);
+    }
+
+    @Override
+    public void onAccess(String key) {
+        Node node = mNodes.get(key);
+        if (node == null) {
+            return;
+        }
+        mOrder.remove(node);
+        node.frequency++;
+        node.lastAccess = ++mTick;
+        mOrder.add(node);
+    }
+
+    @Override
+    public void onRemove(String key) {
+        Node node = mNodes.remove(key);
+        if (node != null) {
+            mOrder.remove(node);
+        }
+    }
+
+    @Override
+    public String nextVictim() {
+        return mOrder.isEmpty() ? null : mOrder.first().key;
+    }
+
+    @Override
+    public void clear() {
+        mNodes.clear();
+        mOrder.clear();
+    }
+}
@@ -16,17 +16,22 @@
 
 package com.android.volley.cache;
 
+import java.util.regex.Pattern;
+
 /**
  * A cache that doesn't.
  */
 public class NoCache implements Cache {
 
+    private final CacheStatsCounter mStats = new CacheStatsCounter();
+
     @Override
     public void clear() {
     }
 
     @Override
     public Entry get(String key) {
+        mStats.recordMiss(0);
         return null;
     }
 
@@ -34,6 +39,15 @@ public class NoCache implements Cache {
     public void put(String key, Entry entry) {
     }
 
+    /**
+     * Returns stats counting every get as a miss, so a queue running without a cache
+     * shows up as such.
+     */
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot();
+    }
+
     @Override
     public void remove(String key) {
     }
@@ -45,4 +59,12 @@ public class NoCache implements Cache {
     @Override
     public void invalidate(String key, long expireTime) {
     }
+
+    @Override
+    public void invalidatePrefix(String prefix, long expireTime) {
+    }
+
+    @Override
+    public void removeMatching(String prefix, Pattern pattern) {
+    }
 }
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import com.android.volley.VolleyLog;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory cache that keeps response bodies outside the Java heap.
+ *
+ * <p>Bodies are copied into fixed-size slabs of direct {@link ByteBuffer} memory, each
+ * carved into equally sized chunks. Every slab class doubles the chunk size of the
+ * previous one, from {@link #MIN_CHUNK_SIZE} up to a whole slab, and a body is stored in
+ * one chunk of the smallest class it fits in. Only a small handle with the key, the
+ * chunk's location and the response metadata stays on the heap, so a large cache adds
+ * little garbage collection work. Bodies larger than a slab are not cached.</p>
+ *
+ * <p>When a class has no free chunk and no new slab may be allocated, its least recently
+ * used entry is evicted. A class without any entries instead takes over the slab holding
+ * the least recently used entry overall, evicting everything stored in that slab.</p>
+ */
+public class OffHeapCache implements Cache {
+
+    /** Default maximum amount of direct memory in bytes. */
+    private static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    /** Size of each direct buffer allocation. */
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    /** Chunk size of the smallest slab class. */
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    /** A direct buffer carved into chunks of a single size. */
+    private static class Slab {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+        SlabClass owner;
+        /** Offsets of the unused chunks; the first {@link #freeCount} are valid. */
+        int[] freeOffsets;
+        int freeCount;
+
+        void assign(SlabClass owner) {
+            this.owner = owner;
+            int chunks = SLAB_SIZE / owner.chunkSize;
+            freeOffsets = new int[chunks];
+            for (int i = 0; i < chunks; i++) {
+                freeOffsets[i] = (chunks - 1 - i) * owner.chunkSize;
+            }
+            freeCount = chunks;
+        }
+    }
+
+    /** All slabs holding chunks of one size, and the entries stored in them. */
+    private static class SlabClass {
+        final int chunkSize;
+        final List<Slab> slabs = new ArrayList<Slab>();
+        /** Entries of this class in access order. */
+        final LinkedHashMap<String, Handle> entries =
+                new LinkedHashMap<String, Handle>(16, .75f, true);
+
+        SlabClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    /** On-heap part of an entry: its metadata and where its body lives. */
+    private static class Handle {
+        final String key;
+        final Slab slab;
+        final int offset;
+        final int length;
+        long expireTime;
+        final String charset;
+        final Map<String, String> responseHeaders;
+        final String partition;
+
+        Handle(String key, Slab slab, int offset, int length, Entry entry) {
+            this.key = key;
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.expireTime = entry.expireTime;
+            this.charset = entry.charset;
+            this.responseHeaders = entry.responseHeaders;
+            this.partition = entry.partition;
+        }
+    }
+
+    /** Every entry in access order. */
+    private final LinkedHashMap<String, Handle> mEntries =
+            new LinkedHashMap<String, Handle>(16, .75f, true);
+
+    /** Slab classes by increasing chunk size. */
+    private final SlabClass[] mClasses;
+
+    /** Maximum number of slabs that may be allocated. */
+    private final int mMaxSlabs;
+
+    /** Number of slabs allocated so far. */
+    private int mSlabCount;
+
+    private final CacheStatsCounter mStats = new CacheStatsCounter();
+
+    /**
+     * @param maxBytes Maximum amount of direct memory to allocate; rounded down to a
+     *     whole number of 1MB slabs, but at least one.
+     */
+    public OffHeapCache(long maxBytes) {
+        mMaxSlabs = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / SLAB_SIZE));
+        List<SlabClass> classes = new ArrayList<SlabClass>();
+        for (int size = MIN_CHUNK_SIZE; size <= SLAB_SIZE; size <<= 1) {
+            classes.add(new SlabClass(size));
+        }
+        mClasses = classes.toArray(new SlabClass[classes.size()]);
+    }
+
+    /**
+     * Creates a cache using up to 8MB of direct memory.
+     */
+    public OffHeapCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    @Override
+    public synchronized void initialize() {
+    }
+
+    @Override
+    public synchronized Entry get(String key) {
+        long start = System.nanoTime();
+        Handle handle = touch(key);
+        if (handle == null) {
+            mStats.recordMiss(System.nanoTime() - start);
+            return null;
+        }
+        byte[] data = new byte[handle.length];
+        ByteBuffer buffer = handle.slab.buffer.duplicate();
+        buffer.position(handle.offset);
+        buffer.get(data);
+        Entry entry = new Entry(data, handle.responseHeaders, handle.charset);
+        entry.expireTime = handle.expireTime;
+        entry.partition = handle.partition;
+        mStats.recordHit(handle.length, System.nanoTime() - start);
+        return entry;
+    }
+
+    /**
+     * Returns a read-only view of the body of the entry with the given key without
+     * copying it onto the heap, or null if the key is not cached.
+     *
+     * <p>The view aliases cache memory: once the entry is overwritten, removed or evicted,
+     * its chunk may be reused and the view will show another entry's bytes. Only use it
+     * for short, immediate reads, and use {@link #get(String)} otherwise.</p>
+     */
+    public synchronized ByteBuffer getBuffer(String key) {
+        long start = System.nanoTime();
+        Handle handle = touch(key);
+        if (handle == null) {
+            mStats.recordMiss(System.nanoTime() - start);
+            return null;
+        }
+        mStats.recordHit(handle.length, System.nanoTime() - start);
+        ByteBuffer buffer = handle.slab.buffer.asReadOnlyBuffer();
+        buffer.limit(handle.offset + handle.length);
+        buffer.position(handle.offset);
+        return buffer.slice();
+    }
+
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        removeHandle(key);
+        int length = entry.getSize();
+        mStats.recordPut(length);
+        SlabClass slabClass = classFor(length);
+        if (slabClass == null) {
+            VolleyLog.d("Not caching %s off heap: %d bytes exceed the slab size", key, length);
+            return;
+        }
+        Slab slab = allocateChunk(slabClass);
+        int offset = slab.freeOffsets[--slab.freeCount];
+        ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(entry.data, 0, length);
+
+        Handle handle = new Handle(key, slab, offset, length, entry);
+        mEntries.put(key, handle);
+        slabClass.entries.put(key, handle);
+    }
+
+    @Override
+    public synchronized void invalidate(String key, long expireTime) {
+        Handle handle = mEntries.get(key);
+        if (handle != null) {
+            handle.expireTime = expireTime;
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        removeHandle(key);
+    }
+
+    @Override
+    public synchronized void invalidatePrefix(String prefix, long expireTime) {
+        for (Handle handle : mEntries.values()) {
+            if (handle.key.startsWith(prefix)) {
+                handle.expireTime = expireTime;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void removeMatching(String prefix, Pattern pattern) {
+        List<String> keys = new ArrayList<String>();
+        for (String key : mEntries.keySet()) {
+            if (CacheKeys.matches(key, prefix, pattern)) {
+                keys.add(key);
+            }
+        }
+        for (String key : keys) {
+            removeHandle(key);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        mEntries.clear();
+        for (SlabClass slabClass : mClasses) {
+            slabClass.entries.clear();
+            for (Slab slab : slabClass.slabs) {
+                slab.assign(slabClass);
+            }
+        }
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot();
+    }
+
+    /** Looks the key up, marking it as recently used. */
+    private Handle touch(String key) {
+        Handle handle = mEntries.get(key);
+        if (handle != null) {
+            handle.slab.owner.entries.get(key);
+        }
+        return handle;
+    }
+
+    /** Returns the smallest class whose chunks hold the given length, or null if none. */
+    private SlabClass classFor(int length) {
+        for (SlabClass slabClass : mClasses) {
+            if (length <= slabClass.chunkSize) {
+                return slabClass;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a slab of the given class with at least one free chunk, allocating or
+     * reassigning a slab, or evicting entries, as needed.
+     */
+    private Slab allocateChunk(SlabClass slabClass) {
+        while (true) {
+            for (Slab slab : slabClass.slabs) {
+                if (slab.freeCount > 0) {
+                    return slab;
+                }
+            }
+            if (mSlabCount < mMaxSlabs) {
+                Slab slab = new Slab();
+                mSlabCount++;
+                slab.assign(slabClass);
+                slabClass.slabs.add(slab);
+                return slab;
+            }
+            if (!slabClass.entries.isEmpty()) {
+                removeHandle(first(slabClass.entries).key);
+                mStats.recordEvictions(1);
+                continue;
+            }
+            // This class owns no entries to evict; take over an unused slab, or else the
+            // slab holding the least recently used entry overall.
+            Slab victim = findUnusedSlab();
+            if (victim == null) {
+                victim = first(mEntries).slab;
+                Iterator<Handle> iterator = mEntries.values().iterator();
+                while (iterator.hasNext()) {
+                    Handle handle = iterator.next();
+                    if (handle.slab == victim) {
+                        iterator.remove();
+                        victim.owner.entries.remove(handle.key);
+                        mStats.recordEvictions(1);
+                    }
+                }
+            }
+            victim.owner.slabs.remove(victim);
+            victim.assign(slabClass);
+            slabClass.slabs.add(victim);
+            return victim;
+        }
+    }
+
+    /** Returns a slab none of whose chunks are in use, or null if there is none. */
+    private Slab findUnusedSlab() {
+        for (SlabClass slabClass : mClasses) {
+            for (Slab slab : slabClass.slabs) {
+                if (slab.freeCount == slab.freeOffsets.length) {
+                    return slab;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void removeHandle(String key) {
+        Handle handle = mEntries.remove(key);
+        if (handle == null) {
+            return;
+        }
+        Slab slab = handle.slab;
+        slab.owner.entries.remove(key);
+        slab.freeOffsets[slab.freeCount++] = handle.offset;
+    }
+
+    private static Handle first(LinkedHashMap<String, Handle> map) {
+        return map.values().iterator().next();
+    }
+}
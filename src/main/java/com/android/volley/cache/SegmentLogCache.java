@@ -0,0 +1,866 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import android.os.SystemClock;
+import com.android.volley.VolleyLog;
+import com.android.volley.cache.DiskCache.CacheHeader;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+/**
+ * Cache implementation that appends entries to a few large segment files instead of
+ * writing one file per entry, keeping an in-memory index of where each entry lives.
+ *
+ * <p>Overwritten, removed and evicted entries leave dead records behind. Once the live
+ * part of a sealed segment drops below {@link #GC_LIVE_RATIO}, its remaining live records
+ * are copied to the active segment on a background thread and the segment is deleted.
+ * Live records are evicted in LRU order to stay under the maximum size; the disk footprint is therefore bounded by roughly
+ * {@code maxCacheSizeInBytes / GC_LIVE_RATIO} plus one segment.</p>
+ *
+ * <p>Reads look up the index under the cache lock but read the record with a positional
+ * read after releasing it, so they don't wait for each other or for a slow disk read.
+ * Sealed segments are opened on demand and at most {@link #MAX_OPEN_SEGMENTS} of them
+ * are kept open, least recently used first out, so a large cache doesn't use up file
+ * descriptors.</p>
+ *
+ * <p>Can be passed anywhere a {@link Cache} is expected, e.g.
+ * {@code Volley.newRequestQueue(context, stack, new SegmentLogCache(dir))}.</p>
+ */
+public class SegmentLogCache implements Cache {
+
+    /** Default maximum size of the live entries in bytes. */
+    private static final long DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** Default size at which the active segment is sealed and a new one started. */
+    private static final int DEFAULT_SEGMENT_SIZE_BYTES = 1024 * 1024;
+
+    /** Sealed segments with a smaller fraction of live bytes than this get compacted. */
+    private static final float GC_LIVE_RATIO = 0.5f;
+
+    /** Marks a record holding a cache entry. */
+    private static final int RECORD_MAGIC = 0x20151001;
+
+    /** Marks a record deleting the entry of a key. */
+    private static final int TOMBSTONE_MAGIC = 0x20151002;
+
+    /** Size of the magic and length fields preceding every record's payload. */
+    private static final int RECORD_PREFIX_BYTES = 8;
+
+    /** Maximum number of sealed segment files kept open for reading. */
+    private static final int MAX_OPEN_SEGMENTS = 8;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** Location of every live entry, in access order. */
+    private final Map<String, Location> mIndex =
+            new LinkedHashMap<String, Location>(16, .75f, true);
+
+    /** Segments by id; higher ids were written later. */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+
+    /** Sealed segments with an open file, least recently read first. */
+    private final LinkedHashMap<Segment, Boolean> mOpenSegments =
+            new LinkedHashMap<Segment, Boolean>(16, .75f, true);
+
+    /** The root directory holding the segment files. */
+    private final File mRootDirectory;
+
+    /** The maximum size of the live records in bytes. */
+    private final long mMaxCacheSizeInBytes;
+
+    /** Size at which the active segment is sealed. */
+    private final int mSegmentSizeInBytes;
+
+    /** Total size of the live records in bytes. */
+    private long mLiveSize;
+
+    private final CacheStatsCounter mStats = new CacheStatsCounter();
+
+    /** The segment new records are appended to. */
+    private Segment mActive;
+
+    /** True while a compaction is queued or running. */
+    private boolean mGcScheduled;
+
+    /** Runs segment compaction; created on first use. */
+    private ExecutorService mGcExecutor;
+
+    /**
+     * Constructs a SegmentLogCache at the specified directory.
+     * @param rootDirectory The directory holding the segment files.
+     * @param maxCacheSizeInBytes The maximum size of the live entries in bytes.
+     * @param segmentSizeInBytes The size at which a segment is sealed.
+     */
+    public SegmentLogCache(File rootDirectory, long maxCacheSizeInBytes, int segmentSizeInBytes) {
+        if (segmentSizeInBytes <= 0 || segmentSizeInBytes > maxCacheSizeInBytes) {
+            throw new IllegalArgumentException("segmentSizeInBytes must be in (0, maxCacheSizeInBytes]");
+        }
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mSegmentSizeInBytes = segmentSizeInBytes;
+    }
+
+    /**
+     * Constructs a SegmentLogCache at the specified directory with 1MB segments.
+     * @param rootDirectory The directory holding the segment files.
+     * @param maxCacheSizeInBytes The maximum size of the live entries in bytes.
+     */
+    public SegmentLogCache(File rootDirectory, long maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, DEFAULT_SEGMENT_SIZE_BYTES);
+    }
+
+    /**
+     * Constructs a SegmentLogCache at the specified directory using the default
+     * maximum cache size of 5MB.
+     * @param rootDirectory The directory holding the segment files.
+     */
+    public SegmentLogCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * Rebuilds the index by reading every segment sequentially, then starts a new
+     * active segment. Creates the root directory if necessary.
+     */
+    @Override
+    public synchronized void initialize() {
+        if (mActive != null) {
+            return;
+        }
+        if (!mRootDirectory.exists() && !mRootDirectory.mkdirs()) {
+            VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            return;
+        }
+        File[] files = mRootDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                int id = parseSegmentId(file.getName());
+                if (id >= 0) {
+                    mSegments.put(id, new Segment(id, file));
+                }
+            }
+        }
+        for (Segment segment : mSegments.values()) {
+            try {
+                replay(segment);
+            } catch (IOException e) {
+                VolleyLog.d("Unable to read segment %s: %s", segment.file, e.toString());
+            }
+        }
+        try {
+            rollSegment();
+        } catch (IOException e) {
+            VolleyLog.e("Unable to create cache segment: %s", e.toString());
+        }
+
+        // Expired entries can be dropped right away.
+        Iterator<Map.Entry<String, Location>> iterator = mIndex.entrySet().iterator();
+        long now = System.currentTimeMillis();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Location> entry = iterator.next();
+            if (entry.getValue().expireTime < now) {
+                iterator.remove();
+                markDead(entry.getValue());
+                appendTombstone(entry.getKey());
+            }
+        }
+        trimToSize();
+        scheduleGcIfNeeded();
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public Entry get(String key) {
+        long start = System.nanoTime();
+        Entry entry = getEntry(key);
+        if (entry != null) {
+            mStats.recordHit(entry.getSize(), System.nanoTime() - start);
+        } else {
+            mStats.recordMiss(System.nanoTime() - start);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns a snapshot of the cache's counters. Evictions are the live entries dropped
+     * to stay under the maximum size.
+     */
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot();
+    }
+
+    private Entry getEntry(String key) {
+        Location location;
+        Segment segment;
+        FileChannel channel;
+        long offset;
+        synchronized (this) {
+            location = mIndex.get(key);
+            if (location == null) {
+                return null;
+            }
+            segment = mSegments.get(location.segmentId);
+            offset = location.offset;
+            try {
+                if (segment == null) {
+                    throw new IOException("Missing segment " + location.segmentId);
+                }
+                channel = openForRead(segment);
+            } catch (IOException e) {
+                VolleyLog.d("Unable to read %s: %s", key, e.toString());
+                remove(key);
+                return null;
+            }
+            // Keeps the file open while it is read without the lock. If the record is
+            // moved by a compaction meanwhile, the old copy is still readable.
+            segment.readers++;
+        }
+        try {
+            ByteBuffer record = ByteBuffer.allocate(location.length).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, record, offset);
+            record.flip();
+            record.position(RECORD_PREFIX_BYTES);
+            CacheHeader header = CacheHeader.readHeader(record);
+            if (!key.equals(header.key)) {
+                throw new IOException("Expected key " + key + ", found " + header.key);
+            }
+            byte[] data = new byte[record.remaining()];
+            record.get(data);
+            if (header.hasChecksum && DiskCache.crc32(data) != header.checksum) {
+                throw new IOException("Checksum mismatch for " + key);
+            }
+            return header.toCacheEntry(data);
+        } catch (IOException e) {
+            VolleyLog.d("Unable to read %s: %s", key, e.toString());
+        } catch (BufferUnderflowException e) {
+            VolleyLog.d("Truncated record for %s", key);
+        } finally {
+            synchronized (this) {
+                segment.release();
+            }
+        }
+        synchronized (this) {
+            // Unless the key was written again meanwhile.
+            if (mIndex.get(key) == location) {
+                remove(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends the entry to the active segment and points the index at it.
+     */
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        if (mActive == null) {
+            return;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(entry.data.length + 256);
+        CacheHeader header = new CacheHeader(key, entry);
+        header.checksum = DiskCache.crc32(entry.data);
+        if (!header.writeHeader(payload)) {
+            return;
+        }
+        payload.write(entry.data, 0, entry.data.length);
+        if (payload.size() + RECORD_PREFIX_BYTES > mMaxCacheSizeInBytes) {
+            remove(key);
+            return;
+        }
+        try {
+            Location location = append(RECORD_MAGIC, payload);
+            location.expireTime = entry.expireTime;
+            markDead(mIndex.put(key, location));
+            mActive.liveBytes += location.length;
+            mLiveSize += location.length;
+            mStats.recordPut(entry.data.length);
+        } catch (IOException e) {
+            VolleyLog.e("Unable to append %s: %s", key, e.toString());
+            remove(key);
+            return;
+        }
+        trimToSize();
+        scheduleGcIfNeeded();
+    }
+
+    /**
+     * Invalidates an entry in the cache by appending a copy with the new expire time.
+     * @param key Cache key
+     * @param expireTime The new expireTime
+     */
+    @Override
+    public synchronized void invalidate(String key, long expireTime) {
+        Entry entry = getEntry(key);
+        if (Entry.invalidate(entry, expireTime)) {
+            put(key, entry);
+        }
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists, recording a tombstone so
+     * the entry does not come back when the segments are replayed.
+     */
+    @Override
+    public synchronized void remove(String key) {
+        Location location = mIndex.remove(key);
+        if (location == null) {
+            return;
+        }
+        markDead(location);
+        appendTombstone(key);
+        scheduleGcIfNeeded();
+    }
+
+    /**
+     * Invalidates every entry whose key starts with the given prefix. The keys are found
+     * by scanning the in-memory index.
+     */
+    @Override
+    public synchronized void invalidatePrefix(String prefix, long expireTime) {
+        for (String key : matchingKeys(prefix, null)) {
+            invalidate(key, expireTime);
+        }
+    }
+
+    /**
+     * Removes every entry whose key starts with the given prefix and matches the pattern.
+     * The keys are found by scanning the in-memory index.
+     */
+    @Override
+    public synchronized void removeMatching(String prefix, Pattern pattern) {
+        for (String key : matchingKeys(prefix, pattern)) {
+            remove(key);
+        }
+    }
+
+    private List<String> matchingKeys(String prefix, Pattern pattern) {
+        List<String> keys = new ArrayList<String>();
+        for (String key : mIndex.keySet()) {
+            if (CacheKeys.matches(key, prefix, pattern)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Clears the cache. Deletes all segment files from disk.
+     */
+    @Override
+    public synchronized void clear() {
+        for (Segment segment : mSegments.values()) {
+            segment.close();
+            segment.file.delete();
+        }
+        mSegments.clear();
+        mOpenSegments.clear();
+        mIndex.clear();
+        mLiveSize = 0;
+        mActive = null;
+        try {
+            rollSegment();
+        } catch (IOException e) {
+            VolleyLog.e("Unable to create cache segment: %s", e.toString());
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Records that the key no longer has an entry, so that replaying the segments does
+     * not bring back an older record for it.
+     */
+    private void appendTombstone(String key) {
+        if (mActive == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DiskCache.writeString(payload, key);
+            append(TOMBSTONE_MAGIC, payload);
+        } catch (IOException e) {
+            VolleyLog.e("Unable to record removal of %s: %s", key, e.toString());
+        }
+    }
+
+    /**
+     * Reads every record of the given segment, updating the index. A torn or unreadable
+     * record, e.g. from a crash mid-write, is cut off together with everything after it.
+     */
+    private void replay(Segment segment) throws IOException {
+        long offset = 0;
+        long size = 0;
+        try {
+            FileChannel channel = openForRead(segment);
+            ByteBuffer prefix =
+                    ByteBuffer.allocate(RECORD_PREFIX_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            size = channel.size();
+            while (offset + RECORD_PREFIX_BYTES <= size) {
+                prefix.clear();
+                readFully(channel, prefix, offset);
+                prefix.flip();
+                int magic = prefix.getInt();
+                int length = prefix.getInt();
+                if ((magic != RECORD_MAGIC && magic != TOMBSTONE_MAGIC)
+                        || length < RECORD_PREFIX_BYTES || offset + length > size) {
+                    break;
+                }
+                Location location = new Location(segment.id, offset, length);
+                ByteBuffer record = readRecord(segment, location);
+                try {
+                    if (magic == RECORD_MAGIC) {
+                        CacheHeader header = CacheHeader.readHeader(record);
+                        location.expireTime = header.expireTime;
+                        markDead(mIndex.put(header.key, location));
+                        segment.liveBytes += length;
+                        mLiveSize += length;
+                    } else {
+                        markDead(mIndex.remove(DiskCache.readString(record)));
+                    }
+                } catch (BufferUnderflowException e) {
+                    break;
+                } catch (IOException e) {
+                    // A record with a header that can't be parsed.
+                    break;
+                }
+                offset += length;
+            }
+        } finally {
+            // Whatever was replayed is accounted for, so a segment that stopped early
+            // can still be compacted and deleted.
+            segment.size = offset;
+        }
+        if (offset < size) {
+            VolleyLog.d("Truncating segment %s from %d to %d bytes", segment.file, size, offset);
+            closeSegment(segment);
+            RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+            try {
+                raf.setLength(offset);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, sealing it first if it is full.
+     * @return The location the record was written to.
+     */
+    private Location append(int magic, ByteArrayOutputStream payload) throws IOException {
+        if (mActive.size >= mSegmentSizeInBytes) {
+            rollSegment();
+        }
+        int length = RECORD_PREFIX_BYTES + payload.size();
+        ByteBuffer record = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(magic);
+        record.putInt(length);
+        record.put(payload.toByteArray());
+        record.flip();
+        return appendRecord(record);
+    }
+
+    /**
+     * Appends an already serialized record to the active segment.
+     */
+    private Location appendRecord(ByteBuffer record) throws IOException {
+        Location location = new Location(mActive.id, mActive.size, record.remaining());
+        FileChannel channel = mActive.open(true);
+        long position = mActive.size;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        mActive.size = position;
+        return location;
+    }
+
+    /**
+     * Seals the active segment and starts a new one.
+     */
+    private void rollSegment() throws IOException {
+        if (mActive != null) {
+            // Sealed; reopened read-only on demand.
+            mActive.close();
+        }
+        int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+        Segment segment = new Segment(id, new File(mRootDirectory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+        segment.open(true);
+        mSegments.put(id, segment);
+        mActive = segment;
+    }
+
+    /**
+     * Evicts the least recently used entries until the live records fit the maximum size.
+     */
+    private void trimToSize() {
+        if (mLiveSize <= mMaxCacheSizeInBytes) {
+            return;
+        }
+        int evicted = 0;
+        Iterator<Map.Entry<String, Location>> iterator = mIndex.entrySet().iterator();
+        while (mLiveSize > mMaxCacheSizeInBytes && iterator.hasNext()) {
+            Map.Entry<String, Location> entry = iterator.next();
+            iterator.remove();
+            markDead(entry.getValue());
+            appendTombstone(entry.getKey());
+            evicted++;
+        }
+        mStats.recordEvictions(evicted);
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("evicted %d entries, %d bytes live", evicted, mLiveSize);
+        }
+    }
+
+    /**
+     * Accounts for a record that is no longer referenced by the index.
+     */
+    private void markDead(Location location) {
+        if (location == null) {
+            return;
+        }
+        mLiveSize -= location.length;
+        Segment segment = mSegments.get(location.segmentId);
+        if (segment != null) {
+            segment.liveBytes -= location.length;
+        }
+    }
+
+    /**
+     * Returns the sealed segment most in need of compaction, or null if none is.
+     * @param maxId Only segments with a smaller id are considered.
+     */
+    private Segment findGcCandidate(int maxId) {
+        Segment candidate = null;
+        for (Segment segment : mSegments.headMap(maxId).values()) {
+            if (segment == mActive) {
+                continue;
+            }
+            // An empty segment, e.g. one whose first record was unreadable, just gets deleted.
+            boolean reclaimable = segment.size == 0
+                    || segment.liveBytes < segment.size * GC_LIVE_RATIO;
+            if (reclaimable
+                    && (candidate == null || segment.liveRatio() < candidate.liveRatio())) {
+                candidate = segment;
+            }
+        }
+        return candidate;
+    }
+
+    private void scheduleGcIfNeeded() {
+        if (mGcScheduled || mActive == null || findGcCandidate(mActive.id) == null) {
+            return;
+        }
+        mGcScheduled = true;
+        if (mGcExecutor == null) {
+            mGcExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "volley-segment-gc");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        mGcExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Compact one segment per lock acquisition so readers are never held
+                // up by more than a single segment's worth of copying. Segments written
+                // during this pass are left for the next one, so tombstones carried
+                // forward can't keep the pass going.
+                int maxId;
+                synchronized (SegmentLogCache.this) {
+                    maxId = mActive != null ? mActive.id : 0;
+                }
+                while (true) {
+                    synchronized (SegmentLogCache.this) {
+                        Segment candidate = findGcCandidate(maxId);
+                        if (candidate == null || mActive == null) {
+                            mGcScheduled = false;
+                            return;
+                        }
+                        compact(candidate);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the live records of the given segment to the active segment and deletes it.
+     *
+     * <p>Tombstones are carried forward while their key is not live and an older segment
+     * might still hold a record for it; in the oldest segment they can be dropped.</p>
+     */
+    private void compact(Segment segment) {
+        long startTime = SystemClock.elapsedRealtime();
+        boolean oldest = segment.id == mSegments.firstKey();
+        long before = segment.size;
+        try {
+            FileChannel channel = openForRead(segment);
+            ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            long offset = 0;
+            while (offset < segment.size) {
+                prefix.clear();
+                readFully(channel, prefix, offset);
+                prefix.flip();
+                int magic = prefix.getInt();
+                int length = prefix.getInt();
+                Location old = new Location(segment.id, offset, length);
+                ByteBuffer record = readRecord(segment, old);
+                String key = magic == RECORD_MAGIC
+                        ? CacheHeader.readHeader(record).key : DiskCache.readString(record);
+                Location current = mIndex.get(key);
+                boolean live = current != null && current.segmentId == segment.id
+                        && current.offset == offset;
+                if (live || (magic == TOMBSTONE_MAGIC && current == null && !oldest)) {
+                    if (mActive.size >= mSegmentSizeInBytes) {
+                        rollSegment();
+                    }
+                    record.rewind();
+                    Location moved = appendRecord(record);
+                    if (live) {
+                        // Re-insert without disturbing the access order.
+                        current.segmentId = moved.segmentId;
+                        current.offset = moved.offset;
+                        segment.liveBytes -= length;
+                        mActive.liveBytes += length;
+                    }
+                }
+                offset += length;
+            }
+        } catch (IOException e) {
+            VolleyLog.e("Unable to compact %s: %s", segment.file, e.toString());
+            quarantine(segment);
+            return;
+        } catch (BufferUnderflowException e) {
+            VolleyLog.e("Corrupt record while compacting %s", segment.file);
+            quarantine(segment);
+            return;
+        }
+        deleteSegment(segment);
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("compacted segment %d: %d bytes reclaimed, %d ms", segment.id,
+                    before - segment.liveBytes, SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Drops a segment that could not be compacted, together with the entries still in it,
+     * so that the next pass doesn't pick it again. Reading those entries would fail too.
+     */
+    private void quarantine(Segment segment) {
+        List<String> keys = new ArrayList<String>();
+        for (Map.Entry<String, Location> entry : mIndex.entrySet()) {
+            if (entry.getValue().segmentId == segment.id) {
+                keys.add(entry.getKey());
+            }
+        }
+        for (String key : keys) {
+            markDead(mIndex.remove(key));
+            appendTombstone(key);
+        }
+        deleteSegment(segment);
+    }
+
+    private void deleteSegment(Segment segment) {
+        closeSegment(segment);
+        segment.file.delete();
+        mSegments.remove(segment.id);
+    }
+
+    /**
+     * Reads a whole record, returning a little-endian buffer positioned after its prefix.
+     */
+    private ByteBuffer readRecord(Segment segment, Location location) throws IOException {
+        if (segment == null) {
+            throw new IOException("Missing segment " + location.segmentId);
+        }
+        ByteBuffer record = ByteBuffer.allocate(location.length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(openForRead(segment), record, location.offset);
+        record.flip();
+        record.position(RECORD_PREFIX_BYTES);
+        return record;
+    }
+
+    /**
+     * Returns a channel to read the segment from, opening its file if needed. Sealed
+     * segments count against {@link #MAX_OPEN_SEGMENTS}; the least recently read ones are
+     * closed to stay under it, or once their last reader is done.
+     */
+    private FileChannel openForRead(Segment segment) throws IOException {
+        if (segment == mActive) {
+            return segment.open(true);
+        }
+        FileChannel channel = segment.open(false);
+        mOpenSegments.put(segment, Boolean.TRUE);
+        if (mOpenSegments.size() > MAX_OPEN_SEGMENTS) {
+            Iterator<Segment> iterator = mOpenSegments.keySet().iterator();
+            while (mOpenSegments.size() > MAX_OPEN_SEGMENTS && iterator.hasNext()) {
+                Segment eldest = iterator.next();
+                if (eldest != segment) {
+                    iterator.remove();
+                    eldest.close();
+                }
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Closes the segment's file, or leaves that to its last reader.
+     */
+    private void closeSegment(Segment segment) {
+        mOpenSegments.remove(segment);
+        segment.close();
+    }
+
+    /**
+     * Returns the number of segment files currently open, including the active one.
+     */
+    // Visible for testing.
+    synchronized int getOpenSegmentCount() {
+        int count = 0;
+        for (Segment segment : mSegments.values()) {
+            if (segment.isOpen()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count == -1) {
+                throw new EOFException();
+            }
+            position += count;
+        }
+    }
+
+    private static int parseSegmentId(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Where a record lives.
+     */
+    private static class Location {
+        int segmentId;
+        long offset;
+        final int length;
+        long expireTime;
+
+        Location(int segmentId, long offset, int length) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * One segment file and its accounting.
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+
+        /** Bytes of complete records in the file. */
+        long size;
+
+        /** Bytes of records the index still points at. */
+        long liveBytes;
+
+        /**
+         * Number of reads in progress without the cache lock; the file is only closed
+         * once they are done.
+         */
+        int readers;
+
+        private RandomAccessFile mFile;
+        private boolean mWritable;
+        private boolean mCloseWhenUnused;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        FileChannel open(boolean writable) throws IOException {
+            if (mFile == null || (writable && !mWritable)) {
+                close();
+                mFile = new RandomAccessFile(file, writable ? "rw" : "r");
+                mWritable = writable;
+            }
+            mCloseWhenUnused = false;
+            return mFile.getChannel();
+        }
+
+        boolean isOpen() {
+            return mFile != null;
+        }
+
+        /** Share of live bytes; 0 for an empty segment, which can simply be deleted. */
+        float liveRatio() {
+            return size == 0 ? 0f : (float) liveBytes / size;
+        }
+
+        /** Called when a read started under the cache lock is done. */
+        void release() {
+            readers--;
+            if (readers == 0 && mCloseWhenUnused) {
+                close();
+            }
+        }
+
+        void close() {
+            if (readers > 0) {
+                mCloseWhenUnused = true;
+                return;
+            }
+            if (mFile != null) {
+                try {
+                    mFile.close();
+                } catch (IOException ignored) { }
+                mFile = null;
+            }
+            mCloseWhenUnused = false;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Two-level cache: a memory-bounded {@link LruCache} of entries in front of any other
+ * {@link Cache}, typically a {@link DiskCache}.
+ *
+ * <p>Reads are served from memory when possible and otherwise loaded from the second
+ * level and kept in memory, so frequently read entries never touch the filesystem.
+ * Writes go to both levels at once ({@link WriteMode#WRITE_THROUGH}), or only to memory
+ * until the entry is evicted from it or {@link #flush()} is called
+ * ({@link WriteMode#WRITE_BACK}).</p>
+ *
+ * <p>The memory level is updated under a lock, but the second level is written after
+ * releasing it, so reads served from memory never wait for the disk. Changes to the
+ * second level are numbered while the lock is held and applied in that order.</p>
+ */
+public class TieredCache implements Cache {
+
+    /** When writes reach the second level. */
+    public enum WriteMode {
+        /** Every put is written to the second level right away. */
+        WRITE_THROUGH,
+        /** Puts are written to the second level once evicted from memory, or on flush. */
+        WRITE_BACK
+    }
+
+    /** A dirty entry that left memory and still has to be written to the second level. */
+    private static class WriteBack {
+        final String key;
+        final Entry entry;
+
+        WriteBack(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+
+    /** Entries larger than this share of the memory level bypass it. */
+    private static final int MAX_ENTRY_FRACTION = 4;
+
+    /** The in-memory first level, bounded by the total size of the entry data. */
+    private final LruCache<String, Entry> mMemory;
+
+    /** The second level. */
+    private final Cache mSecondLevel;
+
+    private final WriteMode mWriteMode;
+
+    /** Entries larger than this are not kept in memory. */
+    private final int mMaxEntrySize;
+
+    /**
+     * Guards the memory level and the bookkeeping below. Never held while the second
+     * level is read or written.
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * Entries only written to memory so far, in {@link WriteMode#WRITE_BACK} mode,
+     * including those evicted from memory until they are written back. Guarded by
+     * {@link #mLock}.
+     */
+    private final Map<String, Entry> mDirty = new HashMap<String, Entry>();
+
+    /**
+     * Dirty entries evicted from memory by the change in progress, which it writes back.
+     * Guarded by {@link #mLock}.
+     */
+    private final List<WriteBack> mEvicted = new ArrayList<WriteBack>();
+
+    /**
+     * Bumped by every change to either level, so a read of the second level can tell
+     * whether what it found may be out of date. Guarded by {@link #mLock}.
+     */
+    private long mGeneration;
+
+    /** Number of the last change queued for the second level. Guarded by {@link #mLock}. */
+    private long mQueued;
+
+    /** Number of the last change applied to the second level. Guarded by {@link #mLock}. */
+    private long mApplied;
+
+    private final CacheStatsCounter mStats = new CacheStatsCounter();
+
+    /**
+     * @param secondLevel The cache behind the memory level.
+     * @param maxMemoryBytes Maximum total size of the entry data kept in memory.
+     * @param writeMode When writes reach the second level.
+     */
+    public TieredCache(Cache secondLevel, int maxMemoryBytes, WriteMode writeMode) {
+        mSecondLevel = secondLevel;
+        mWriteMode = writeMode;
+        mMaxEntrySize = maxMemoryBytes / MAX_ENTRY_FRACTION;
+        mMemory = new LruCache<String, Entry>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return value.getSize();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue,
+                    Entry newValue) {
+                // Only called from changes made with mLock held.
+                if (evicted && mDirty.get(key) == oldValue) {
+                    mEvicted.add(new WriteBack(key, oldValue));
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a write-through cache.
+     * @param secondLevel The cache behind the memory level.
+     * @param maxMemoryBytes Maximum total size of the entry data kept in memory.
+     */
+    public TieredCache(Cache secondLevel, int maxMemoryBytes) {
+        this(secondLevel, maxMemoryBytes, WriteMode.WRITE_THROUGH);
+    }
+
+    @Override
+    public void initialize() {
+        mSecondLevel.initialize();
+    }
+
+    @Override
+    public Entry get(String key) {
+        long start = System.nanoTime();
+        Entry entry = getEntry(key);
+        if (entry != null) {
+            mStats.recordHit(entry.getSize(), System.nanoTime() - start);
+        } else {
+            mStats.recordMiss(System.nanoTime() - start);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns a snapshot of the counters of this cache, where a hit in either level is a
+     * hit. Entries leaving memory are not lost, so evictions and prune passes are those of
+     * the second level.
+     */
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot().withEvictionsOf(mSecondLevel.getStats());
+    }
+
+    private Entry getEntry(String key) {
+        Entry entry = mMemory.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        long generation;
+        boolean settled;
+        synchronized (mLock) {
+            // Evicted from memory, but still being written back.
+            entry = mDirty.get(key);
+            if (entry != null) {
+                return entry;
+            }
+            generation = mGeneration;
+            settled = mApplied == mQueued;
+        }
+        entry = mSecondLevel.get(key);
+        if (entry == null || entry.getSize() > mMaxEntrySize || !settled) {
+            return entry;
+        }
+        long change;
+        List<WriteBack> writeBacks;
+        synchronized (mLock) {
+            // Don't keep what was read if the second level was being changed meanwhile;
+            // it may be older than what the change left there.
+            if (mGeneration != generation) {
+                return entry;
+            }
+            mMemory.put(key, entry);
+            writeBacks = takeEvicted();
+            if (writeBacks.isEmpty()) {
+                return entry;
+            }
+            mGeneration++;
+            change = queueChange();
+        }
+        finishChange(change, writeBacks);
+        return entry;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        mStats.recordPut(entry.getSize());
+        boolean inMemory = entry.getSize() <= mMaxEntrySize;
+        boolean writeBack = inMemory && mWriteMode == WriteMode.WRITE_BACK;
+        long change;
+        List<WriteBack> writeBacks;
+        synchronized (mLock) {
+            mGeneration++;
+            if (inMemory) {
+                if (writeBack) {
+                    mDirty.put(key, entry);
+                } else {
+                    mDirty.remove(key);
+                }
+                mMemory.put(key, entry);
+            } else {
+                mDirty.remove(key);
+                mMemory.remove(key);
+            }
+            writeBacks = takeEvicted();
+            if (writeBack && writeBacks.isEmpty()) {
+                return;
+            }
+            change = queueChange();
+        }
+        try {
+            if (!writeBack) {
+                mSecondLevel.put(key, entry);
+            }
+        } finally {
+            finishChange(change, writeBacks);
+        }
+    }
+
+    @Override
+    public void invalidate(String key, long expireTime) {
+        long change;
+        List<WriteBack> writeBacks;
+        synchronized (mLock) {
+            mGeneration++;
+            Entry entry = mMemory.get(key);
+            if (entry != null) {
+                invalidateInMemory(key, entry, expireTime);
+            }
+            writeBacks = takeEvicted();
+            Entry dirty = mDirty.get(key);
+            if (entry == null && dirty != null) {
+                // Evicted and waiting to be written back; write the invalidated copy.
+                Entry invalidated = copyWithExpireTime(dirty, expireTime);
+                mDirty.put(key, invalidated);
+                writeBacks.add(new WriteBack(key, invalidated));
+            }
+            change = queueChange();
+        }
+        try {
+            mSecondLevel.invalidate(key, expireTime);
+        } finally {
+            finishChange(change, writeBacks);
+        }
+    }
+
+    @Override
+    public void invalidatePrefix(String prefix, long expireTime) {
+        long change;
+        List<WriteBack> writeBacks;
+        synchronized (mLock) {
+            mGeneration++;
+            for (Map.Entry<String, Entry> cached : mMemory.snapshot().entrySet()) {
+                if (cached.getKey().startsWith(prefix)) {
+                    invalidateInMemory(cached.getKey(), cached.getValue(), expireTime);
+                }
+            }
+            writeBacks = takeEvicted();
+            change = queueChange();
+        }
+        try {
+            mSecondLevel.invalidatePrefix(prefix, expireTime);
+        } finally {
+            finishChange(change, writeBacks);
+        }
+    }
+
+    @Override
+    public void removeMatching(String prefix, Pattern pattern) {
+        long change;
+        synchronized (mLock) {
+            mGeneration++;
+            for (String key : mMemory.snapshot().keySet()) {
+                if (CacheKeys.matches(key, prefix, pattern)) {
+                    mDirty.remove(key);
+                    mMemory.remove(key);
+                }
+            }
+            change = queueChange();
+        }
+        try {
+            mSecondLevel.removeMatching(prefix, pattern);
+        } finally {
+            finishChange(change, Collections.<WriteBack>emptyList());
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        long change;
+        synchronized (mLock) {
+            mGeneration++;
+            mDirty.remove(key);
+            mMemory.remove(key);
+            change = queueChange();
+        }
+        try {
+            mSecondLevel.remove(key);
+        } finally {
+            finishChange(change, Collections.<WriteBack>emptyList());
+        }
+    }
+
+    @Override
+    public void clear() {
+        long change;
+        synchronized (mLock) {
+            mGeneration++;
+            // Drop dirty entries first, so evicting them doesn't write them back.
+            mDirty.clear();
+            mMemory.evictAll();
+            change = queueChange();
+        }
+        try {
+            mSecondLevel.clear();
+        } finally {
+            finishChange(change, Collections.<WriteBack>emptyList());
+        }
+    }
+
+    /**
+     * Writes every entry only held in memory to the second level. Does nothing in
+     * {@link WriteMode#WRITE_THROUGH} mode.
+     */
+    public void flush() {
+        long change;
+        List<WriteBack> writeBacks = new ArrayList<WriteBack>();
+        synchronized (mLock) {
+            if (mDirty.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, Entry> dirty : mDirty.entrySet()) {
+                writeBacks.add(new WriteBack(dirty.getKey(), dirty.getValue()));
+            }
+            change = queueChange();
+        }
+        finishChange(change, writeBacks);
+    }
+
+    /**
+     * Replaces an entry held in memory with a copy carrying the new expire time. Callers
+     * may still hold the cached entry, so it is not mutated. Must be called with
+     * {@link #mLock} held.
+     */
+    private void invalidateInMemory(String key, Entry entry, long expireTime) {
+        Entry invalidated = copyWithExpireTime(entry, expireTime);
+        if (mDirty.containsKey(key)) {
+            mDirty.put(key, invalidated);
+        }
+        mMemory.put(key, invalidated);
+    }
+
+    private static Entry copyWithExpireTime(Entry entry, long expireTime) {
+        Entry copy = new Entry(entry.data, entry.responseHeaders, entry.charset);
+        copy.expireTime = expireTime;
+        copy.partition = entry.partition;
+        return copy;
+    }
+
+    /**
+     * Returns the dirty entries evicted from memory since the last call. Must be called
+     * with {@link #mLock} held.
+     */
+    private List<WriteBack> takeEvicted() {
+        if (mEvicted.isEmpty()) {
+            return new ArrayList<WriteBack>(0);
+        }
+        List<WriteBack> evicted = new ArrayList<WriteBack>(mEvicted);
+        mEvicted.clear();
+        return evicted;
+    }
+
+    /**
+     * Numbers a change to the second level and waits until every earlier one has been
+     * applied. Must be called with {@link #mLock} held, after the memory level was
+     * updated; the lock is released while waiting.
+     * @return The number to pass to {@link #finishChange(long, List)}.
+     */
+    private long queueChange() {
+        long change = ++mQueued;
+        boolean interrupted = false;
+        while (mApplied != change - 1) {
+            try {
+                mLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return change;
+    }
+
+    /**
+     * Writes the given dirty entries to the second level, then lets the next change go.
+     * Must be called without {@link #mLock} held, even if the change failed.
+     */
+    private void finishChange(long change, List<WriteBack> writeBacks) {
+        try {
+            for (WriteBack writeBack : writeBacks) {
+                mSecondLevel.put(writeBack.key, writeBack.entry);
+            }
+        } finally {
+            synchronized (mLock) {
+                for (WriteBack writeBack : writeBacks) {
+                    // Unless it was put again meanwhile.
+                    if (mDirty.get(writeBack.key) == writeBack.entry) {
+                        mDirty.remove(writeBack.key);
+                    }
+                }
+                mApplied = change;
+                mLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Window TinyLFU: recency for new entries, frequency for everything else.
+ *
+ * <p>New keys enter a small LRU window. Keys leaving the window are candidates for the
+ * main region: the next time an entry must be evicted, a candidate competes with the
+ * main region's least recently used key and only stays if it has been seen more often
+ * recently, as estimated by a compact frequency sketch. The main
+ * region is a segmented LRU, whose protected segment holds keys read at least twice. A
+ * burst of keys read only once, such as a crawl over cold URLs, therefore churns through
+ * the window without flushing the frequently read entries.</p>
+ *
+ * <p>The sketch is sized once for the number of entries the cache is expected to hold;
+ * tracking more keys than that only makes its estimates coarser.</p>
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+    /** Share of tracked keys kept in the admission window. */
+    private static final float WINDOW_FRACTION = 0.01f;
+
+    /** Share of the main region reserved for keys read at least twice. */
+    private static final float PROTECTED_FRACTION = 0.8f;
+
+    /**
+     * Number of entries the sketch is sized for by default, e.g. a 5MB cache of 5KB
+     * responses.
+     */
+    private static final int DEFAULT_MAXIMUM_ENTRIES = 1024;
+
+    private final LinkedHashMap<String, Boolean> mWindow =
+            new LinkedHashMap<String, Boolean>(16, .75f, true);
+    private final LinkedHashMap<String, Boolean> mProbation =
+            new LinkedHashMap<String, Boolean>(16, .75f, true);
+    private final LinkedHashMap<String, Boolean> mProtected =
+            new LinkedHashMap<String, Boolean>(16, .75f, true);
+
+    /** Keys moved from the window to probation that have not competed for admission yet. */
+    private final LinkedHashMap<String, Boolean> mCandidates =
+            new LinkedHashMap<String, Boolean>();
+
+    private final FrequencySketch mSketch;
+
+    /**
+     * @param maximumEntries The number of entries the cache is expected to hold at most.
+     */
+    public TinyLfuEvictionPolicy(int maximumEntries) {
+        if (maximumEntries <= 0) {
+            throw new IllegalArgumentException("maximumEntries <= 0");
+        }
+        mSketch = new FrequencySketch(maximumEntries);
+    }
+
+    public TinyLfuEvictionPolicy() {
+        this(DEFAULT_MAXIMUM_ENTRIES);
+    }
+
+    @Override
+    public void onInsert(String key, long size) {
+        if (mWindow.containsKey(key) || mProbation.containsKey(key)
+                || mProtected.containsKey(key)) {
+            onAccess(key);
+            return;
+        }
+        mSketch.increment(key);
+        mWindow.put(key, Boolean.TRUE);
+        int maxWindow = Math.max(1, (int) (size() * WINDOW_FRACTION));
+        while (mWindow.size() > maxWindow) {
+            String candidate = first(mWindow);
+            mWindow.remove(candidate);
+            mProbation.put(candidate, Boolean.TRUE);
+            mCandidates.put(candidate, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void onAccess(String key) {
+        mSketch.increment(key);
+        if (mWindow.get(key) != null || mProtected.get(key) != null) {
+            return;
+        }
+        if (mProbation.remove(key) != null) {
+            mCandidates.remove(key);
+            mProtected.put(key, Boolean.TRUE);
+            int maxProtected = (int) ((mProbation.size() + mProtected.size()) * PROTECTED_FRACTION);
+            while (mProtected.size() > Math.max(maxProtected, 1)) {
+                String demoted = first(mProtected);
+                mProtected.remove(demoted);
+                mProbation.put(demoted, Boolean.TRUE);
+            }
+        }
+    }
+
+    @Override
+    public void onRemove(String key) {
+        String candidate = first(mCandidates);
+        if (candidate != null && !candidate.equals(key) && key.equals(mainVictim())) {
+            // The key the candidate competed against is gone, so the candidate keeps its
+            // place in probation.
+            mCandidates.remove(candidate);
+        }
+        if (mWindow.remove(key) == null && mProbation.remove(key) == null) {
+            mProtected.remove(key);
+        }
+        mCandidates.remove(key);
+    }
+
+    @Override
+    public String nextVictim() {
+        String victim = mainVictim();
+        if (victim == null) {
+            return first(mWindow);
+        }
+        String candidate = first(mCandidates);
+        if (candidate == null || candidate.equals(victim)) {
+            return victim;
+        }
+        // The candidate keeps its place in probation only if it is seen more often. The
+        // outcome is settled in onRemove, so asking again gives the same answer.
+        return mSketch.frequency(candidate) > mSketch.frequency(victim) ? victim : candidate;
+    }
+
+    @Override
+    public void clear() {
+        mWindow.clear();
+        mProbation.clear();
+        mProtected.clear();
+        mCandidates.clear();
+        mSketch.clear();
+    }
+
+    private int size() {
+        return mWindow.size() + mProbation.size() + mProtected.size();
+    }
+
+    private String mainVictim() {
+        String victim = first(mProbation);
+        return victim != null ? victim : first(mProtected);
+    }
+
+    private static String first(LinkedHashMap<String, Boolean> map) {
+        Iterator<String> iterator = map.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters estimating how often each key was seen recently.
+     * Counters are halved once the sketch has seen ten times as many events as it has
+     * counters per row, so old popularity fades.
+     */
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97cb3127, 0xb7e15162, 0x8f1bbcdc, 0x2545f491};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        /** Sixteen 4-bit counters per long; {@link #DEPTH} rows of {@code mWidth} each. */
+        private final long[] mTable;
+        private final int mWidth;
+        private int mAdditions;
+
+        /**
+         * @param keys The number of keys to track accurately.
+         */
+        FrequencySketch(int keys) {
+            mWidth = Math.max(16, Integer.highestOneBit(keys - 1) << 1);
+            mTable = new long[DEPTH * mWidth / 16];
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                added |= incrementAt(indexOf(hash, i));
+            }
+            if (added && ++mAdditions >= 10 * mWidth) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, counterAt(indexOf(hash, i)));
+            }
+            return frequency;
+        }
+
+        void clear() {
+            Arrays.fill(mTable, 0L);
+            mAdditions = 0;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 16;
+            return row * mWidth + (h & (mWidth - 1));
+        }
+
+        private int counterAt(int index) {
+            return (int) ((mTable[index >>> 4] >>> ((index & 15) << 2)) & 0xf);
+        }
+
+        private boolean incrementAt(int index) {
+            int shift = (index & 15) << 2;
+            long mask = 0xfL << shift;
+            if ((mTable[index >>> 4] & mask) == mask) {
+                return false;
+            }
+            mTable[index >>> 4] += 1L << shift;
+            return true;
+        }
+
+        private void reset() {
+            for (int i = 0; i < mTable.length; i++) {
+                mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+            }
+            mAdditions /= 2;
+        }
+
+        private static int spread(int h) {
+            h ^= (h >>> 20) ^ (h >>> 12);
+            return h ^ (h >>> 7) ^ (h >>> 4);
+        }
+    }
+}
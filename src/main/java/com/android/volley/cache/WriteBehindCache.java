@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import android.os.Process;
+import com.android.volley.VolleyLog;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Cache that hands writes to a background thread before they reach another cache.
+ *
+ * <p>{@link #put(String, Entry)}, {@link #remove(String)}, {@link #invalidate(String, long)},
+ * their bulk variants and {@link #clear()} only queue the change and return, so a network dispatcher can
+ * deliver its response without waiting for the disk. A single writer thread applies the
+ * queued changes to the wrapped cache in order. Until a change has been applied,
+ * {@link #get(String)} answers from the queued change, so readers never see older data
+ * than what was written.</p>
+ *
+ * <p>The queue is bounded; once it is full, writers block until the writer thread catches
+ * up rather than buffering responses without limit.</p>
+ */
+public class WriteBehindCache implements Cache {
+
+    /** Default maximum number of changes waiting to be applied. */
+    private static final int DEFAULT_MAX_PENDING_WRITES = 64;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_INVALIDATE = 3;
+    private static final int OP_CLEAR = 4;
+    private static final int OP_INVALIDATE_PREFIX = 5;
+    private static final int OP_REMOVE_MATCHING = 6;
+
+    /** A queued change to the wrapped cache. */
+    private static class Op {
+        final int type;
+        /** The key, or the key prefix of a bulk change. */
+        final String key;
+        /** The entry readers see until the change is applied, or null for a removal. */
+        final Entry entry;
+        final long expireTime;
+        /** Pattern of a bulk removal, or null. */
+        Pattern pattern;
+        /** Order in which the change was queued. */
+        long sequence;
+
+        Op(int type, String key, Entry entry, long expireTime) {
+            this.type = type;
+            this.key = key;
+            this.entry = entry;
+            this.expireTime = expireTime;
+        }
+
+        /** True if this bulk change applies to the key. */
+        boolean matches(String key) {
+            return CacheKeys.matches(key, this.key, pattern);
+        }
+    }
+
+    /** The cache changes are written to. */
+    private final Cache mDelegate;
+
+    /** Maximum number of changes in {@link #mQueue}. */
+    private final int mMaxPendingWrites;
+
+    private final Object mLock = new Object();
+
+    /** Changes not yet taken by the writer thread, oldest first. Guarded by {@link #mLock}. */
+    private final LinkedList<Op> mQueue = new LinkedList<Op>();
+
+    /**
+     * The latest queued or in-flight change per key that readers must see instead of the
+     * wrapped cache. Guarded by {@link #mLock}.
+     */
+    private final Map<String, Op> mPending = new HashMap<String, Op>();
+
+    /**
+     * The latest queued or in-flight invalidation per key that had no queued entry to
+     * shadow, which readers must apply to what they find. Guarded by {@link #mLock}.
+     */
+    private final Map<String, Op> mPendingInvalidations = new HashMap<String, Op>();
+
+    /** Number of queued or in-flight clears. Guarded by {@link #mLock}. */
+    private int mPendingClears;
+
+    /**
+     * Queued or in-flight bulk changes, oldest first, which readers must apply to what
+     * they find. Guarded by {@link #mLock}.
+     */
+    private final LinkedList<Op> mPendingBulk = new LinkedList<Op>();
+
+    /** Sequence number of the last queued change. Guarded by {@link #mLock}. */
+    private long mSequence;
+
+    private final CacheStatsCounter mStats = new CacheStatsCounter();
+
+    /** The change the writer thread is applying, if any. Guarded by {@link #mLock}. */
+    private Op mInFlight;
+
+    /** The writer thread; started on the first change. Guarded by {@link #mLock}. */
+    private Thread mWriter;
+
+    /**
+     * @param delegate The cache changes are written to.
+     * @param maxPendingWrites Maximum number of changes waiting to be applied.
+     */
+    public WriteBehindCache(Cache delegate, int maxPendingWrites) {
+        if (maxPendingWrites <= 0) {
+            throw new IllegalArgumentException("maxPendingWrites <= 0");
+        }
+        mDelegate = delegate;
+        mMaxPendingWrites = maxPendingWrites;
+    }
+
+    /**
+     * @param delegate The cache changes are written to.
+     */
+    public WriteBehindCache(Cache delegate) {
+        this(delegate, DEFAULT_MAX_PENDING_WRITES);
+    }
+
+    @Override
+    public void initialize() {
+        mDelegate.initialize();
+    }
+
+    @Override
+    public Entry get(String key) {
+        long start = System.nanoTime();
+        Entry entry = getEntry(key);
+        if (entry != null) {
+            mStats.recordHit(entry.getSize(), System.nanoTime() - start);
+        } else {
+            mStats.recordMiss(System.nanoTime() - start);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns a snapshot of the counters of this cache, including reads answered from
+     * queued changes. Evictions and prune passes are those of the wrapped cache.
+     */
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot().withEvictionsOf(mDelegate.getStats());
+    }
+
+    private Entry getEntry(String key) {
+        Op op;
+        Op invalidation;
+        synchronized (mLock) {
+            op = mPending.get(key);
+            if (op == null && mPendingClears > 0) {
+                return null;
+            }
+            // The latest invalidation or bulk change queued after the key's own change
+            // decides the outcome.
+            long after = op != null ? op.sequence : 0;
+            invalidation = mPendingInvalidations.get(key);
+            if (invalidation != null && invalidation.sequence < after) {
+                invalidation = null;
+            }
+            for (Op candidate : mPendingBulk) {
+                if (candidate.sequence > after
+                        && (invalidation == null || candidate.sequence > invalidation.sequence)
+                        && candidate.matches(key)) {
+                    invalidation = candidate;
+                }
+            }
+            if (invalidation != null && invalidation.type == OP_REMOVE_MATCHING) {
+                return null;
+            }
+        }
+        Entry entry = op != null ? op.entry : mDelegate.get(key);
+        if (invalidation == null || entry == null) {
+            return entry;
+        }
+        // Copy, as the entry may already have been handed to a listener.
+        Entry invalidated = new Entry(entry.data, entry.responseHeaders, entry.charset);
+        invalidated.expireTime = invalidation.expireTime;
+        invalidated.partition = entry.partition;
+        return invalidated;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        mStats.recordPut(entry.getSize());
+        enqueue(new Op(OP_PUT, key, entry, 0), true);
+    }
+
+    @Override
+    public void remove(String key) {
+        enqueue(new Op(OP_REMOVE, key, null, 0), true);
+    }
+
+    @Override
+    public void invalidate(String key, long expireTime) {
+        // Whether it shadows a queued entry is only known once there is room in the queue.
+        enqueue(new Op(OP_INVALIDATE, key, null, expireTime), false);
+    }
+
+    @Override
+    public void invalidatePrefix(String prefix, long expireTime) {
+        enqueue(new Op(OP_INVALIDATE_PREFIX, prefix, null, expireTime), false);
+    }
+
+    @Override
+    public void removeMatching(String prefix, Pattern pattern) {
+        Op op = new Op(OP_REMOVE_MATCHING, prefix, null, 0);
+        op.pattern = pattern;
+        enqueue(op, false);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mLock) {
+            // Nothing queued needs to be written anymore.
+            mQueue.clear();
+            mPending.clear();
+            mPendingInvalidations.clear();
+            mPendingBulk.clear();
+            mPendingClears++;
+            enqueue(new Op(OP_CLEAR, null, null, 0), false);
+        }
+    }
+
+    /**
+     * Blocks until every change queued so far has been applied to the wrapped cache.
+     */
+    public void flush() {
+        boolean interrupted = false;
+        synchronized (mLock) {
+            while (!mQueue.isEmpty() || mInFlight != null) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a change, blocking while the queue is full.
+     * @param shadow Whether readers should see the change, rather than the wrapped cache,
+     *     before it is applied. Invalidations shadow the latest queued entry of their key,
+     *     if any; otherwise they are applied to what readers find in the wrapped cache.
+     */
+    private void enqueue(Op op, boolean shadow) {
+        boolean interrupted = false;
+        synchronized (mLock) {
+            // Changes must be applied in order, so a full queue can't be bypassed.
+            while (mQueue.size() >= mMaxPendingWrites) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (op.type == OP_INVALIDATE) {
+                // Looked up after waiting, as the lock was released meanwhile and a newer
+                // entry may have been queued.
+                op = shadowInvalidation(op);
+                shadow = op.entry != null;
+            }
+            op.sequence = ++mSequence;
+            if (shadow) {
+                mPending.put(op.key, op);
+            } else if (op.type == OP_INVALIDATE) {
+                mPendingInvalidations.put(op.key, op);
+            } else if (isBulk(op)) {
+                mPendingBulk.addLast(op);
+            }
+            mQueue.addLast(op);
+            startWriterIfNeeded();
+            mLock.notifyAll();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns an invalidation carrying an invalidated copy of the latest queued entry of
+     * its key, or the given one if there is none. Must be called with {@link #mLock} held.
+     */
+    private Op shadowInvalidation(Op op) {
+        Op pending = mPending.get(op.key);
+        if (pending == null || pending.entry == null) {
+            return op;
+        }
+        // Readers see the queued entry, so they must see it invalidated too. Copy it, as
+        // the queued entry may already have been handed to a listener.
+        Entry shadow = new Entry(pending.entry.data, pending.entry.responseHeaders,
+                pending.entry.charset);
+        shadow.expireTime = op.expireTime;
+        shadow.partition = pending.entry.partition;
+        return new Op(OP_INVALIDATE, op.key, shadow, op.expireTime);
+    }
+
+    private void startWriterIfNeeded() {
+        if (mWriter != null) {
+            return;
+        }
+        mWriter = new Thread("volley-write-behind") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runWriter();
+            }
+        };
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    private void runWriter() {
+        while (true) {
+            Op op;
+            synchronized (mLock) {
+                while (mQueue.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Not expected; the thread is private. Keep writing.
+                    }
+                }
+                op = mQueue.removeFirst();
+                mInFlight = op;
+                // Wake writers waiting for room in the queue.
+                mLock.notifyAll();
+            }
+
+            try {
+                apply(op);
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Unable to write behind cache change for key=%s", op.key);
+            }
+
+            synchronized (mLock) {
+                if (op.type == OP_CLEAR) {
+                    mPendingClears--;
+                } else if (isBulk(op)) {
+                    mPendingBulk.remove(op);
+                } else if (mPending.get(op.key) == op) {
+                    mPending.remove(op.key);
+                } else if (mPendingInvalidations.get(op.key) == op) {
+                    mPendingInvalidations.remove(op.key);
+                }
+                mInFlight = null;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private static boolean isBulk(Op op) {
+        return op.type == OP_INVALIDATE_PREFIX || op.type == OP_REMOVE_MATCHING;
+    }
+
+    private void apply(Op op) {
+        switch (op.type) {
+            case OP_PUT:
+                mDelegate.put(op.key, op.entry);
+                break;
+            case OP_REMOVE:
+                mDelegate.remove(op.key);
+                break;
+            case OP_INVALIDATE:
+                mDelegate.invalidate(op.key, op.expireTime);
+                break;
+            case OP_CLEAR:
+                mDelegate.clear();
+                break;
+            case OP_INVALIDATE_PREFIX:
+                mDelegate.invalidatePrefix(op.key, op.expireTime);
+                break;
+            case OP_REMOVE_MATCHING:
+                mDelegate.removeMatching(op.key, op.pattern);
+                break;
+            default:
+                throw new IllegalStateException("Unknown op " + op.type);
+        }
+    }
+}
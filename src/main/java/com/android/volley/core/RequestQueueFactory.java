@@ -8,6 +8,7 @@ import com.android.volley.Volley;
 import com.android.volley.cache.Cache;
 import com.android.volley.cache.DiskCache;
 import com.android.volley.cache.NoCache;
+import com.android.volley.cache.WriteBehindCache;
 import com.android.volley.stack.HttpStack;
 import java.io.File;
 import java.util.concurrent.Executors;
@@ -48,7 +49,8 @@ public class RequestQueueFactory {
 
         // pass Executor to constructor of ResponseDelivery object
         ResponseDelivery delivery = new ExecutorDelivery(Executors.newFixedThreadPool(threadPoolSize));
-        return Volley.newRequestQueue(context, stack, new DiskCache(externalStorageDirectory), threadPoolSize, delivery);
+        return Volley.newRequestQueue(context, stack, 
+                new WriteBehindCache(new DiskCache(externalStorageDirectory)), threadPoolSize, delivery);
     }
 
     public static RequestQueue newFileQueue(Context context, HttpStack stack, int threadPoolSize) {
@@ -64,7 +66,8 @@ public class RequestQueueFactory {
         File externalStorageDirectory = new File(externalCacheDir, RequestOptions.IMAGE_CACHE_PATH);
         if (!externalStorageDirectory.exists()) externalStorageDirectory.mkdirs();
 
-        Cache diskCache = new DiskCache(externalStorageDirectory, RequestOptions.DEFAULT_DISK_USAGE_BYTES);
+        Cache diskCache = new WriteBehindCache(
+                new DiskCache(externalStorageDirectory, RequestOptions.DEFAULT_DISK_USAGE_BYTES));
         return Volley.newRequestQueue(context, stack, diskCache, threadPoolSize);
     }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.cache.Cache;
+import com.android.volley.cache.DiskCache;
+import com.android.volley.error.VolleyError;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Measures how many cache hits a {@link RequestQueue} serves per second with one or more
+ * cache dispatchers taking requests from the cache queue, as set with
+ * {@link RequestQueue#setCacheDispatcherCount(int)}.
+ *
+ * <p>Every request hits a {@link DiskCache} and parses a text body of
+ * {@link #ENTRY_SIZE} bytes. Responses are delivered on the cache dispatcher threads, so
+ * the measurement is not bound by a single delivery thread.</p>
+ *
+ * <p>Not run as part of the unit tests; run {@link #main(String[])} from the unit test
+ * classpath, optionally passing the number of requests per measurement.</p>
+ */
+public class CacheDispatcherBenchmark {
+
+    private static final int KEY_COUNT = 256;
+    private static final int ENTRY_SIZE = 16 * 1024;
+    private static final int[] DISPATCHER_COUNTS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        System.out.println("cache dispatchers  hits/s");
+        for (int dispatchers : DISPATCHER_COUNTS) {
+            File dir = createTempDir();
+            try {
+                double hits = run(dir, dispatchers, requests);
+                System.out.println(String.format("%17d  %6.0f", dispatchers, hits));
+            } finally {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    /**
+     * Adds the given number of requests for cached responses and waits for all of them.
+     * @return Requests completed per second.
+     */
+    private static double run(File dir, int dispatchers, int requests)
+            throws InterruptedException {
+        DiskCache cache = new DiskCache(dir, 64L * 1024 * 1024);
+        cache.initialize();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            cache.put(url(i), newEntry());
+        }
+        RequestQueue queue = new RequestQueue(cache, new FailingNetwork(), 1,
+                new ExecutorDelivery(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                }));
+        queue.setCacheDispatcherCount(dispatchers);
+        queue.start();
+        try {
+            CountDownLatch done = new CountDownLatch(requests);
+            long begin = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                queue.add(new TextRequest(url(i % KEY_COUNT), done));
+            }
+            done.await();
+            return requests * 1e9 / (System.nanoTime() - begin);
+        } finally {
+            queue.stop();
+        }
+    }
+
+    private static String url(int i) {
+        return "http://example.com/resource/" + i;
+    }
+
+    private static Cache.Entry newEntry() {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[ENTRY_SIZE];
+        Arrays.fill(entry.data, (byte) 'a');
+        entry.expireTime = Long.MAX_VALUE;
+        entry.charset = "UTF-8";
+        return entry;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("volley-bench", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Decodes the body as text, counting down the latch once delivered. */
+    private static class TextRequest extends Request<String> {
+        TextRequest(String url, final CountDownLatch done) {
+            super(url, new Listener<String>() {
+                @Override
+                public void onSuccess(String response) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(VolleyError error) {
+                    done.countDown();
+                }
+            });
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            try {
+                String text = new String(response.data, response.charset);
+                return Response.success(text.toUpperCase(), response);
+            } catch (UnsupportedEncodingException e) {
+                return Response.error(new VolleyError(e));
+            }
+        }
+    }
+
+    /** Every request in the benchmark is a cache hit; reaching the network is an error. */
+    private static class FailingNetwork implements Network {
+        @Override
+        public void setDelivery(ResponseDelivery delivery) {
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            throw new VolleyError("Unexpected cache miss for " + request.getUrl());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import com.android.volley.error.VolleyError;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class NetworkDispatcherPoolTest {
+
+    /** Holds every network request until counted down. */
+    private final CountDownLatch mNetworkGate = new CountDownLatch(1);
+
+    /** Counted down for each request reaching the network. */
+    private final CountDownLatch mPerformed = new CountDownLatch(1);
+
+    private NetworkDispatcherPool mPool;
+
+    @After
+    public void tearDown() {
+        mNetworkGate.countDown();
+        if (mPool != null) {
+            mPool.stop();
+        }
+    }
+
+    @Test
+    public void growsWhenRequestWaitsWithoutNewTraffic() throws Exception {
+        mPool = new NetworkDispatcherPool(1, 2, 100, 50, 60 * 1000);
+        NetworkQueue queue = new NetworkQueue();
+        mPool.start(queue, new BlockingNetwork(), null, newDelivery());
+
+        queue.add(newRequest("http://example.com/1"));
+        assertTrue(mPerformed.await(5, TimeUnit.SECONDS));
+
+        // The only dispatcher is busy; the second request is queued and then nothing
+        // happens until it has waited longer than maxWaitMs.
+        TestRequest waiting = newRequest("http://example.com/2");
+        queue.add(waiting);
+        mPool.onRequestQueued();
+        assertEquals(1, mPool.getPoolSize());
+        waiting.setNetworkQueueTime(SystemClock.elapsedRealtime() - 1000);
+
+        for (int i = 0; i < 200 && mPool.getPoolSize() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, mPool.getPoolSize());
+        assertEquals(1, mPool.getGrowCount());
+    }
+
+    @Test
+    public void doesNotGrowWhileRequestsAreTakenInTime() throws Exception {
+        mPool = new NetworkDispatcherPool(1, 2, 100, 60 * 1000, 60 * 1000);
+        NetworkQueue queue = new NetworkQueue();
+        mPool.start(queue, new BlockingNetwork(), null, newDelivery());
+
+        queue.add(newRequest("http://example.com/1"));
+        assertTrue(mPerformed.await(5, TimeUnit.SECONDS));
+        TestRequest waiting = newRequest("http://example.com/2");
+        queue.add(waiting);
+        mPool.onRequestQueued();
+
+        Thread.sleep(200);
+        assertEquals(1, mPool.getPoolSize());
+    }
+
+    private static TestRequest newRequest(String url) {
+        TestRequest request = new TestRequest(url);
+        request.setNetworkQueueTime(SystemClock.elapsedRealtime());
+        return request;
+    }
+
+    private static ResponseDelivery newDelivery() {
+        return new ExecutorDelivery(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    private class BlockingNetwork implements Network {
+        @Override
+        public void setDelivery(ResponseDelivery delivery) {
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            mPerformed.countDown();
+            try {
+                mNetworkGate.await();
+            } catch (InterruptedException e) {
+                throw new VolleyError(e);
+            }
+            throw new VolleyError("Not performed");
+        }
+    }
+
+    private static class TestRequest extends Request<String> {
+        TestRequest(String url) {
+            super(url, null);
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+    }
+}
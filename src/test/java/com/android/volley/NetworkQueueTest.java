@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.android.volley.error.VolleyError;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+
+@SuppressWarnings("rawtypes")
+public class NetworkQueueTest {
+
+    private int mSequence;
+
+    @Test
+    public void takeableSizeLeavesOutRequestsHeldBackByHostLimits() {
+        NetworkQueue queue = new NetworkQueue();
+        queue.setMaxRequestsPerHost(1);
+        queue.add(newRequest("http://a.com/1"));
+        queue.add(newRequest("http://a.com/2"));
+        queue.add(newRequest("http://a.com/3"));
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.takeableSize());
+
+        queue.poll();
+        assertEquals(2, queue.size());
+        assertEquals(0, queue.takeableSize());
+
+        queue.add(newRequest("http://b.com/1"));
+        assertEquals(1, queue.takeableSize());
+    }
+
+    @Test
+    public void waitingRequestsAreSortedByHostWhenSchedulingIsEnabled() {
+        NetworkQueue queue = new NetworkQueue();
+        Request a1 = newRequest("http://a.com/1");
+        Request a2 = newRequest("http://a.com/2");
+        Request b1 = newRequest("http://b.com/1");
+        queue.add(a1);
+        queue.add(a2);
+        queue.add(b1);
+
+        queue.setMaxRequestsPerHost(1);
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.takeableSize());
+        assertSame(a1, queue.poll());
+        assertSame(b1, queue.poll());
+        assertNull(queue.poll());
+
+        queue.release(a1);
+        assertSame(a2, queue.poll());
+    }
+
+    @Test
+    public void dispatcherReleasesHostSlotWhenDone() {
+        NetworkQueue queue = new NetworkQueue();
+        queue.setMaxRequestsPerHost(1);
+        Request first = newRequest("http://a.com/1");
+        Request second = newRequest("http://a.com/2");
+        queue.add(first);
+        queue.add(second);
+        NetworkDispatcher dispatcher = new NetworkDispatcher(queue, new FailingNetwork(), null,
+                new ExecutorDelivery(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        // Never delivered, like a main thread that is busy.
+                    }
+                }));
+
+        assertSame(first, queue.poll());
+        assertNull(queue.poll());
+        dispatcher.processRequest(first);
+        assertSame(second, queue.poll());
+    }
+
+    private Request newRequest(String url) {
+        Request request = new Request<String>(url, null) {
+            @Override
+            protected Response<String> parseNetworkResponse(NetworkResponse response) {
+                return null;
+            }
+        };
+        request.setSequence(++mSequence);
+        return request;
+    }
+
+    private static class FailingNetwork implements Network {
+        @Override
+        public void setDelivery(ResponseDelivery delivery) {
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            throw new VolleyError("Not performed");
+        }
+    }
+}
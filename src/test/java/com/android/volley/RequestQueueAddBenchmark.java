@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.cache.NoCache;
+import com.android.volley.error.VolleyError;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link RequestQueue#add(Request)} and {@link RequestQueue#finish(Request)}
+ * throughput with several threads adding requests at once, compared with the same queue
+ * behind a single lock.
+ *
+ * <p>Producers either use keys of their own, or share a few keys so that most requests
+ * are staged behind a request in flight. No dispatchers are started; requests are
+ * finished right after being added.</p>
+ *
+ * <p>Not run as part of the unit tests; run {@link #main(String[])} from the unit test
+ * classpath, optionally passing the number of requests per producer.</p>
+ */
+public class RequestQueueAddBenchmark {
+
+    private static final int[] PRODUCER_COUNTS = {1, 2, 4, 8};
+    private static final int SHARED_KEY_COUNT = 4;
+    private static final int OWN_KEY_COUNT = 64;
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        // Warm up.
+        run(new SingleLockQueue(), 2, true, requests);
+        run(newQueue(), 2, true, requests);
+
+        System.out.println("producers  keys      single lock  queue    (requests/s)");
+        for (int producers : PRODUCER_COUNTS) {
+            for (boolean shared : new boolean[] {false, true}) {
+                double locked = run(new SingleLockQueue(), producers, shared, requests);
+                double queue = run(newQueue(), producers, shared, requests);
+                System.out.println(String.format("%9d  %-8s  %11.0f  %8.0f",
+                        producers, shared ? "shared" : "own", locked, queue));
+            }
+        }
+    }
+
+    /** @return Requests added and finished per second, over all producers. */
+    private static double run(final RequestQueue queue, int producers, final boolean shared,
+            final int requests) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < requests; i++) {
+                            String key = shared
+                                    ? "shared/" + (i % SHARED_KEY_COUNT)
+                                    : producer + "/" + (i % OWN_KEY_COUNT);
+                            TestRequest request = new TestRequest("http://example.com/" + key);
+                            queue.add(request);
+                            queue.finish(request);
+                        }
+                    } catch (InterruptedException e) {
+                        // Done.
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return (double) producers * requests * 1e9 / (System.nanoTime() - begin);
+    }
+
+    private static RequestQueue newQueue() {
+        return new RequestQueue(new NoCache(), new UnusedNetwork(), 1, newDelivery());
+    }
+
+    private static ResponseDelivery newDelivery() {
+        return new ExecutorDelivery(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    /** The queue with adding and finishing serialized, as they were before. */
+    @SuppressWarnings("rawtypes")
+    private static class SingleLockQueue extends RequestQueue {
+        SingleLockQueue() {
+            super(new NoCache(), new UnusedNetwork(), 1, newDelivery());
+        }
+
+        @Override
+        public synchronized Request add(Request request) {
+            return super.add(request);
+        }
+
+        @Override
+        synchronized void finish(Request request) {
+            super.finish(request);
+        }
+    }
+
+    /** No dispatchers are started, so requests never reach the network. */
+    private static class UnusedNetwork implements Network {
+        @Override
+        public void setDelivery(ResponseDelivery delivery) {
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            throw new VolleyError("Not performed");
+        }
+    }
+
+    private static class TestRequest extends Request<String> {
+        TestRequest(String url) {
+            super(url, null);
+            setCacheExpireTime(TimeUnit.MINUTES, 1);
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+    }
+}
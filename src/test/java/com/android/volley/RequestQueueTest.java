@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.cache.NoCache;
+import com.android.volley.error.VolleyError;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestQueueTest {
+
+    /** Holds every network request until counted down. */
+    private final CountDownLatch mNetworkGate = new CountDownLatch(1);
+
+    /** Counts the requests that reached the network. */
+    private final AtomicInteger mPerformed = new AtomicInteger();
+
+    private RequestQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new RequestQueue(new NoCache(), new BlockingNetwork(), 1,
+                new ExecutorDelivery(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                }));
+        mQueue.start();
+    }
+
+    @After
+    public void tearDown() {
+        mNetworkGate.countDown();
+        mQueue.stop();
+    }
+
+    @Test
+    public void requestsWithoutCacheKeyAreNotStaged() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        mQueue.add(new TestRequest("http://example.com/1", null, done));
+        mQueue.add(new TestRequest("http://example.com/2", null, done));
+        mNetworkGate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, mPerformed.get());
+    }
+
+    @Test
+    public void duplicatesWaitForRequestInFlight() throws Exception {
+        CountDownLatch done = new CountDownLatch(3);
+        mQueue.add(new TestRequest("http://example.com/1", "key", done));
+        for (int i = 0; i < 200 && mPerformed.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mPerformed.get());
+
+        mQueue.add(new TestRequest("http://example.com/2", "key", done));
+        mQueue.add(new TestRequest("http://example.com/3", "key", done));
+        Thread.sleep(100);
+        assertEquals(1, mPerformed.get());
+
+        mNetworkGate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, mPerformed.get());
+    }
+
+    private class BlockingNetwork implements Network {
+        @Override
+        public void setDelivery(ResponseDelivery delivery) {
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            mPerformed.incrementAndGet();
+            try {
+                mNetworkGate.await();
+            } catch (InterruptedException e) {
+                throw new VolleyError(e);
+            }
+            throw new VolleyError("Not performed");
+        }
+    }
+
+    /** Counts down the latch once delivered. */
+    private static class TestRequest extends Request<String> {
+        private final String mCacheKey;
+
+        TestRequest(String url, String cacheKey, final CountDownLatch done) {
+            super(url, new Listener<String>() {
+                @Override
+                public void onSuccess(String response) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(VolleyError error) {
+                    done.countDown();
+                }
+            });
+            mCacheKey = cacheKey;
+            setCacheExpireTime(TimeUnit.MINUTES, 1);
+        }
+
+        @Override
+        public String getCacheKey() {
+            return mCacheKey;
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Measures {@link DiskCache} throughput with several threads reading and writing
+ * different keys, against the same cache behind a single lock as every method was
+ * synchronized before the index and file locks were split.
+ *
+ * <p>Not run as part of the unit tests; run {@link #main(String[])} from the unit test
+ * classpath, optionally passing the number of seconds per measurement.</p>
+ */
+public class DiskCacheContentionBenchmark {
+
+    private static final int KEY_COUNT = 256;
+    private static final int ENTRY_SIZE = 16 * 1024;
+    /** Percentage of operations that are puts; the rest are gets. */
+    private static final int PUT_PERCENT = 20;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 3;
+        System.out.println("threads  single lock ops/s  striped ops/s");
+        for (int threads : THREAD_COUNTS) {
+            File dir = createTempDir();
+            try {
+                double singleLock = run(new SynchronizedCache(newCache(dir, "single")), threads,
+                        seconds);
+                double striped = run(newCache(dir, "striped"), threads, seconds);
+                System.out.println(String.format("%7d  %17.0f  %13.0f", threads, singleLock,
+                        striped));
+            } finally {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    private static Cache newCache(File dir, String name) {
+        DiskCache cache = new DiskCache(new File(dir, name), 64L * 1024 * 1024);
+        cache.initialize();
+        return cache;
+    }
+
+    /**
+     * Runs a mix of gets and puts over a fixed key set from the given number of threads.
+     * @return Operations per second over all threads.
+     */
+    private static double run(final Cache cache, int threads, long seconds)
+            throws InterruptedException {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            cache.put(key(i), newEntry(i));
+        }
+        final AtomicLong operations = new AtomicLong();
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long count = 0;
+                        while (System.nanoTime() < deadline) {
+                            int i = random.nextInt(KEY_COUNT);
+                            if (random.nextInt(100) < PUT_PERCENT) {
+                                cache.put(key(i), newEntry(i));
+                            } else {
+                                cache.get(key(i));
+                            }
+                            count++;
+                        }
+                        operations.addAndGet(count);
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return operations.get() * 1e9 / (System.nanoTime() - begin);
+    }
+
+    private static String key(int i) {
+        return "http://example.com/resource/" + i;
+    }
+
+    private static Cache.Entry newEntry(int i) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[ENTRY_SIZE];
+        entry.data[0] = (byte) i;
+        entry.expireTime = Long.MAX_VALUE;
+        entry.charset = "UTF-8";
+        return entry;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("volley-bench", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** A cache with every method synchronized on one lock. */
+    private static class SynchronizedCache implements Cache {
+        private final Cache mDelegate;
+
+        SynchronizedCache(Cache delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public synchronized Entry get(String key) {
+            return mDelegate.get(key);
+        }
+
+        @Override
+        public synchronized void put(String key, Entry entry) {
+            mDelegate.put(key, entry);
+        }
+
+        @Override
+        public synchronized void initialize() {
+            mDelegate.initialize();
+        }
+
+        @Override
+        public synchronized void invalidate(String key, long expireTime) {
+            mDelegate.invalidate(key, expireTime);
+        }
+
+        @Override
+        public synchronized void remove(String key) {
+            mDelegate.remove(key);
+        }
+
+        @Override
+        public synchronized void invalidatePrefix(String prefix, long expireTime) {
+            mDelegate.invalidatePrefix(prefix, expireTime);
+        }
+
+        @Override
+        public synchronized void removeMatching(String prefix, Pattern pattern) {
+            mDelegate.removeMatching(prefix, pattern);
+        }
+
+        @Override
+        public synchronized void clear() {
+            mDelegate.clear();
+        }
+
+        @Override
+        public synchronized CacheStats getStats() {
+            return mDelegate.getStats();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.cache.Cache.Entry;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = new File(mFolder.getRoot(), "cache");
+    }
+
+    @Test
+    public void putThenGet() {
+        DiskCache cache = newCache();
+        cache.put("key", newEntry("key", 0, 100));
+        assertEntry(cache.get("key"), "key", 100);
+        assertNull(cache.get("missing"));
+    }
+
+    @Test
+    public void largeAndCompressedEntries() {
+        DiskCache cache = newCache();
+        cache.setCompressionEnabled(true);
+        cache.put("large", newEntry("large", 7, 512 * 1024));
+        Entry text = newEntry("text", 8, 64 * 1024);
+        text.responseHeaders = Collections.singletonMap("Content-Type", "application/json");
+        cache.put("text", text);
+        assertTrue(cache.getFileForKey("text").length() < 64 * 1024);
+
+        DiskCache reopened = newCache();
+        assertEntry(reopened.get("large"), "large", 512 * 1024);
+        assertEntry(reopened.get("text"), "text", 64 * 1024);
+    }
+
+    @Test
+    public void prunePassReportsEvictions() throws Exception {
+        DiskCache cache = new DiskCache(mRoot, 100 * 1024);
+        cache.initialize();
+        final CountDownLatch pruned = new CountDownLatch(1);
+        final long[] result = new long[3];
+        cache.setPruneListener(new DiskCache.PruneListener() {
+            @Override
+            public void onPrune(int filesDeleted, long bytesReclaimed, long durationMs) {
+                result[0] = filesDeleted;
+                result[1] = bytesReclaimed;
+                result[2] = durationMs;
+                pruned.countDown();
+            }
+        });
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, newEntry("key" + i, i, 10 * 1024));
+        }
+        assertTrue(pruned.await(5, TimeUnit.SECONDS));
+        assertTrue(result[0] > 0);
+        assertTrue(result[1] >= result[0] * 10 * 1024);
+        assertTrue(result[2] <= System.currentTimeMillis() - start);
+        assertTrue(cache.getStats().pruneCount() >= 1);
+    }
+
+    @Test
+    public void intSizedConstructorIsKept() throws Exception {
+        // Code compiled against earlier releases links against this exact signature.
+        DiskCache.class.getConstructor(File.class, int.class).newInstance(mRoot, 1024 * 1024);
+    }
+
+    @Test
+    public void concurrentWritersAndReadersSeeWholeEntries() throws Exception {
+        final DiskCache cache = newCache();
+        final int threads = 8;
+        final int keys = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 300; i++) {
+                            String key = "key" + random.nextInt(keys);
+                            int op = random.nextInt(10);
+                            if (op < 4) {
+                                cache.put(key, newEntry(key, i, 1 + random.nextInt(4096)));
+                            } else if (op == 4) {
+                                cache.remove(key);
+                            } else {
+                                Entry entry = cache.get(key);
+                                if (entry != null) {
+                                    assertConsistent(entry, key);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // A fresh instance indexes exactly what the last writes left behind.
+        DiskCache reopened = newCache();
+        for (int i = 0; i < keys; i++) {
+            String key = "key" + i;
+            Entry expected = cache.get(key);
+            Entry actual = reopened.get(key);
+            if (expected == null) {
+                assertNull(actual);
+            } else {
+                assertNotNull(actual);
+                assertEquals(expected.data.length, actual.data.length);
+                assertConsistent(actual, key);
+            }
+        }
+    }
+
+    @Test
+    public void tornJournalRecordIsCutOff() throws Exception {
+        DiskCache cache = newCache();
+        File journal = awaitJournal();
+        cache.put("a", newEntry("a", 1, 10));
+        cache.put("b", newEntry("b", 2, 20));
+        // Leaves redundant records, so a rebuilt journal would be shorter.
+        cache.put("c", newEntry("c", 3, 30));
+        cache.remove("c");
+        long length = journal.length();
+        FileOutputStream os = new FileOutputStream(journal, true);
+        // A put record cut off in the middle of its key.
+        os.write(new byte[] {1, 5, 0, 0, 0, 0, 0, 0, 0, 'a', 'b'});
+        os.close();
+
+        DiskCache reopened = newCache();
+        assertEquals(length, journal.length());
+        assertEntry(reopened.get("a"), "a", 10);
+        assertEntry(reopened.get("b"), "b", 20);
+    }
+
+    @Test
+    public void corruptJournalLengthFallsBackToScan() throws Exception {
+        DiskCache cache = newCache();
+        File journal = awaitJournal();
+        cache.put("a", newEntry("a", 1, 10));
+        cache.put("b", newEntry("b", 2, 20));
+        FileOutputStream os = new FileOutputStream(journal, true);
+        // A put record whose key length decodes to almost 2GB.
+        os.write(new byte[] {1, (byte) 0xf0, (byte) 0xff, (byte) 0xff, 0x7f, 0, 0, 0, 0});
+        os.write(new byte[64]);
+        os.close();
+
+        DiskCache reopened = newCache();
+        assertEntry(reopened.get("a"), "a", 10);
+        assertEntry(reopened.get("b"), "b", 20);
+    }
+
+    @Test
+    public void replayReconcilesJournalWithFiles() throws Exception {
+        DiskCache cache = newCache();
+        awaitJournal();
+        cache.put("a", newEntry("a", 1, 10));
+        cache.put("b", newEntry("b", 2, 20));
+        // As if a crash hit between a rename and its journal record, and between a
+        // journaled removal and the file deletion.
+        File orphan = new File(mRoot, "f" + File.separator + "f" + File.separator
+                + "ff000000000000000000000000000000");
+        File tmp = new File(orphan.getPath() + ".tmp");
+        orphan.getParentFile().mkdirs();
+        copy(cache.getFileForKey("a"), orphan);
+        copy(cache.getFileForKey("a"), tmp);
+        assertTrue(cache.getFileForKey("b").delete());
+
+        DiskCache reopened = newCache();
+        assertFalse(orphan.exists());
+        assertFalse(tmp.exists());
+        assertEntry(reopened.get("a"), "a", 10);
+        assertNull(reopened.get("b"));
+    }
+
+    @Test
+    public void writesDuringJournalRebuildAreKept() throws Exception {
+        DiskCache cache = newCache();
+        awaitJournal();
+        cache.put("a", newEntry("a", 1, 10));
+        cache.clear();
+        cache.put("b", newEntry("b", 2, 20));
+
+        DiskCache reopened = newCache();
+        assertNull(reopened.get("a"));
+        assertEntry(reopened.get("b"), "b", 20);
+    }
+
+    @Test
+    public void invalidateWhileLoadingIsNotOverridden() throws Exception {
+        DiskCache cache = newCache();
+        for (int i = 0; i < 500; i++) {
+            cache.put("key" + i, newEntry("key" + i, i, 16));
+        }
+
+        DiskCache lazy = new DiskCache(mRoot, 10L * 1024 * 1024);
+        lazy.setLazyInitialization(true);
+        lazy.initialize();
+        long expireTime = System.currentTimeMillis() + 60 * 60 * 1000;
+        lazy.invalidate("key499", expireTime);
+        assertEquals(expireTime, lazy.get("key499").expireTime);
+
+        // Once loaded, the index and the file agree on the new expire time.
+        assertEquals(expireTime, newCache().get("key499").expireTime);
+        assertEquals(expireTime, lazy.get("key499").expireTime);
+    }
+
+    @Test
+    public void headerRoundTrip() throws Exception {
+        Entry entry = newEntry("key", 1, 64);
+        entry.responseHeaders = Collections.singletonMap("Content-Type", "text/plain");
+        entry.partition = "images";
+        DiskCache.CacheHeader header = new DiskCache.CacheHeader("key", entry);
+        byte[] bytes = header.toByteArray();
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        DiskCache.CacheHeader read = DiskCache.CacheHeader.readHeader(buffer);
+        assertEquals(bytes.length, buffer.position());
+        assertEquals("key", read.key);
+        assertEquals(entry.expireTime, read.expireTime);
+        assertEquals("UTF-8", read.charset);
+        assertEquals("images", read.partition);
+        assertEquals(entry.responseHeaders, read.responseHeaders);
+        assertEquals(64, read.dataLength);
+    }
+
+    @Test
+    public void corruptHeaderIsDetected() throws Exception {
+        DiskCache cache = newCache();
+        Entry entry = newEntry("key", 1, 64);
+        entry.responseHeaders = Collections.singletonMap("ETag", "abc");
+        cache.put("key", entry);
+        // Flip a bit of the expire time, which the data checksum does not cover.
+        RandomAccessFile raf = new RandomAccessFile(cache.getFileForKey("key"), "rw");
+        raf.seek(5);
+        int b = raf.read();
+        raf.seek(5);
+        raf.write(b ^ 0x10);
+        raf.close();
+
+        assertNull(cache.get("key"));
+        assertEquals(1, cache.getCorruptEntryCount());
+    }
+
+    @Test
+    public void readsAndRewritesOriginalFormat() throws Exception {
+        assertTrue(mRoot.mkdirs());
+        Entry entry = newEntry("legacy", 1, 32);
+        FileOutputStream os = new FileOutputStream(new File(mRoot, "legacy-file"));
+        DiskCache.writeInt(os, 0x20120504);
+        DiskCache.writeString(os, "legacy");
+        DiskCache.writeLong(os, entry.expireTime);
+        DiskCache.writeString(os, entry.charset);
+        DiskCache.writeStringStringMap(null, os);
+        os.write(entry.data);
+        os.close();
+
+        DiskCache cache = newCache();
+        assertEntry(cache.get("legacy"), "legacy", 32);
+        long expireTime = System.currentTimeMillis() + 60 * 60 * 1000;
+        cache.invalidate("legacy", expireTime);
+        Entry invalidated = newCache().get("legacy");
+        assertEntry(invalidated, "legacy", 32);
+        assertEquals(expireTime, invalidated.expireTime);
+    }
+
+    /** Waits for the journal a fresh cache writes on its maintenance thread. */
+    private File awaitJournal() throws InterruptedException {
+        File journal = new File(mRoot, DiskCacheJournal.JOURNAL_FILE);
+        for (int i = 0; i < 500 && !journal.exists(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(journal.exists());
+        return journal;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        FileInputStream is = new FileInputStream(from);
+        FileOutputStream os = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                os.write(buffer, 0, count);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+    }
+
+    private DiskCache newCache() {
+        DiskCache cache = new DiskCache(mRoot, 10L * 1024 * 1024);
+        cache.initialize();
+        return cache;
+    }
+
+    /**
+     * Returns an entry whose data starts with the key's hash and is filled with the given
+     * version, so a torn or mixed-up read can be recognized.
+     */
+    static Entry newEntry(String key, int version, int size) {
+        Entry entry = new Entry();
+        entry.data = new byte[Math.max(size, 4)];
+        int hash = key.hashCode();
+        for (int i = 0; i < entry.data.length; i++) {
+            entry.data[i] = i < 4 ? (byte) (hash >> (i * 8)) : (byte) version;
+        }
+        entry.expireTime = Long.MAX_VALUE;
+        entry.charset = "UTF-8";
+        return entry;
+    }
+
+    static void assertEntry(Entry entry, String key, int size) {
+        assertNotNull(entry);
+        assertEquals(size, entry.data.length);
+        assertConsistent(entry, key);
+    }
+
+    static void assertConsistent(Entry entry, String key) {
+        int hash = key.hashCode();
+        for (int i = 0; i < 4; i++) {
+            assertEquals((byte) (hash >> (i * 8)), entry.data[i]);
+        }
+        for (int i = 5; i < entry.data.length; i++) {
+            assertEquals(entry.data[4], entry.data[i]);
+        }
+    }
+}
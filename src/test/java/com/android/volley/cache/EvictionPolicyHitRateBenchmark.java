@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the hit rates of the {@link EvictionPolicy} implementations on synthetic
+ * request traces, replayed against a size-bounded cache the way {@link DiskCache} prunes.
+ *
+ * <p>Traces draw keys from a Zipf distribution, optionally interrupted by scans over keys
+ * that are read once, like a crawl over cold URLs. Entry sizes vary per key so the
+ * size-aware policy has something to work with.</p>
+ *
+ * <p>Not run as part of the unit tests; run {@link #main(String[])} from the unit test
+ * classpath, optionally passing the number of requests per trace.</p>
+ */
+public class EvictionPolicyHitRateBenchmark {
+
+    private static final int KEY_COUNT = 20000;
+    private static final double ZIPF_EXPONENT = 0.9;
+    private static final int MIN_ENTRY_SIZE = 1024;
+    private static final int MAX_ENTRY_SIZE = 32 * 1024;
+    private static final long MAX_CACHE_SIZE = 5 * 1024 * 1024;
+    /** Requests between two scans, and the number of cold keys read by each scan. */
+    private static final int SCAN_INTERVAL = 5000;
+    private static final int SCAN_LENGTH = 2000;
+
+    public static void main(String[] args) {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        System.out.println("policy  trace         hit rate  byte hit rate");
+        for (boolean scans : new boolean[] {false, true}) {
+            for (String name : new String[] {"lru", "lfu", "gdsf", "tinylfu"}) {
+                Result result = run(newPolicy(name), requests, scans);
+                System.out.println(String.format("%-7s %-12s  %7.2f%%  %12.2f%%", name,
+                        scans ? "zipf+scans" : "zipf", result.hitRate() * 100,
+                        result.byteHitRate() * 100));
+            }
+        }
+    }
+
+    private static EvictionPolicy newPolicy(String name) {
+        if (name.equals("lru")) {
+            return new LruEvictionPolicy();
+        } else if (name.equals("lfu")) {
+            return new LfuEvictionPolicy();
+        } else if (name.equals("gdsf")) {
+            return new GdsfEvictionPolicy();
+        }
+        int averageSize = (MIN_ENTRY_SIZE + MAX_ENTRY_SIZE) / 2;
+        return new TinyLfuEvictionPolicy((int) (MAX_CACHE_SIZE / averageSize));
+    }
+
+    /**
+     * Replays a trace against a cache of {@link #MAX_CACHE_SIZE} bytes using the policy.
+     * Every trace uses the same seed, so all policies see the same requests.
+     */
+    private static Result run(EvictionPolicy policy, int requests, boolean scans) {
+        Random random = new Random(42);
+        double[] cdf = zipfCdf(KEY_COUNT, ZIPF_EXPONENT);
+        Map<String, Long> resident = new HashMap<String, Long>();
+        long size = 0;
+        int nextColdKey = 0;
+        Result result = new Result();
+        for (int i = 0; i < requests; i++) {
+            String key;
+            if (scans && i % SCAN_INTERVAL >= SCAN_INTERVAL - SCAN_LENGTH) {
+                key = "cold" + nextColdKey++;
+            } else {
+                int index = Arrays.binarySearch(cdf, random.nextDouble());
+                key = "key" + (index >= 0 ? index : -index - 1);
+            }
+            long entrySize = entrySize(key);
+            result.requests++;
+            result.requestedBytes += entrySize;
+            if (resident.containsKey(key)) {
+                result.hits++;
+                result.hitBytes += entrySize;
+                policy.onAccess(key);
+                continue;
+            }
+            resident.put(key, entrySize);
+            size += entrySize;
+            policy.onInsert(key, entrySize);
+            while (size > MAX_CACHE_SIZE) {
+                String victim = policy.nextVictim();
+                size -= resident.remove(victim);
+                policy.onRemove(victim);
+            }
+        }
+        return result;
+    }
+
+    /** Cumulative probabilities of ranks 0 to n - 1 under a Zipf distribution. */
+    private static double[] zipfCdf(int n, double exponent) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+
+    /** A size that is fixed per key, spread between the minimum and maximum entry size. */
+    private static long entrySize(String key) {
+        int hash = key.hashCode() * 0x9e3779b9;
+        return MIN_ENTRY_SIZE + ((hash >>> 1) % (MAX_ENTRY_SIZE - MIN_ENTRY_SIZE));
+    }
+
+    private static class Result {
+        long requests;
+        long hits;
+        long requestedBytes;
+        long hitBytes;
+
+        double hitRate() {
+            return (double) hits / requests;
+        }
+
+        double byteHitRate() {
+            return (double) hitBytes / requestedBytes;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import static com.android.volley.cache.DiskCacheTest.assertConsistent;
+import static com.android.volley.cache.DiskCacheTest.assertEntry;
+import static com.android.volley.cache.DiskCacheTest.newEntry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.cache.Cache.Entry;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentLogCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = new File(mFolder.getRoot(), "cache");
+    }
+
+    @Test
+    public void putThenGetAfterReopen() {
+        SegmentLogCache cache = newCache(4 * 1024);
+        cache.put("a", newEntry("a", 1, 100));
+        cache.put("b", newEntry("b", 2, 3000));
+        cache.remove("a");
+        assertEntry(cache.get("b"), "b", 3000);
+
+        SegmentLogCache reopened = newCache(4 * 1024);
+        assertNull(reopened.get("a"));
+        assertEntry(reopened.get("b"), "b", 3000);
+    }
+
+    @Test
+    public void openSegmentFilesAreBounded() {
+        SegmentLogCache cache = newCache(4 * 1024);
+        for (int i = 0; i < 40; i++) {
+            cache.put("key" + i, newEntry("key" + i, i, 2000));
+        }
+
+        SegmentLogCache reopened = newCache(4 * 1024);
+        for (int i = 0; i < 40; i++) {
+            assertEntry(reopened.get("key" + i), "key" + i, 2000);
+        }
+        // The sealed segments read last plus the active one.
+        assertTrue(reopened.getOpenSegmentCount() <= 9);
+    }
+
+    @Test
+    public void unreadableSegmentIsReclaimed() throws Exception {
+        SegmentLogCache cache = newCache(4 * 1024);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, newEntry("key" + i, i, 2000));
+        }
+        File first = new File(mRoot, "segment-0.log");
+        RandomAccessFile raf = new RandomAccessFile(first, "rw");
+        try {
+            raf.writeInt(0xdeadbeef);
+        } finally {
+            raf.close();
+        }
+
+        SegmentLogCache reopened = newCache(4 * 1024);
+        for (int i = 0; i < 200 && first.exists(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(first.exists());
+        assertNull(reopened.get("key0"));
+        assertEntry(reopened.get("key9"), "key9", 2000);
+    }
+
+    @Test
+    public void segmentFailingCompactionIsDropped() throws Exception {
+        SegmentLogCache cache = newCache(4 * 1024);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, newEntry("key" + i, i, 2000));
+        }
+        File first = new File(mRoot, "segment-0.log");
+        RandomAccessFile raf = new RandomAccessFile(first, "rw");
+        try {
+            raf.setLength(100);
+        } finally {
+            raf.close();
+        }
+
+        // Leaves nothing live in the first segment, so it is compacted.
+        cache.remove("key0");
+        cache.remove("key1");
+        for (int i = 0; i < 200 && first.exists(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(first.exists());
+        assertEntry(cache.get("key9"), "key9", 2000);
+        cache.put("key0", newEntry("key0", 0, 2000));
+        assertEntry(cache.get("key0"), "key0", 2000);
+    }
+
+    @Test
+    public void putBeforeInitializeIsNotCounted() {
+        SegmentLogCache cache = new SegmentLogCache(mRoot);
+        cache.put("key", newEntry("key", 0, 100));
+        assertEquals(0, cache.getStats().putCount());
+
+        cache.initialize();
+        cache.put("key", newEntry("key", 0, 100));
+        assertEquals(1, cache.getStats().putCount());
+    }
+
+    @Test
+    public void concurrentWritersAndReadersSeeWholeEntries() throws Exception {
+        // Small segments so reads race with sealing, compaction and closing of old files.
+        final SegmentLogCache cache = newCache(8 * 1024);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 2000; i++) {
+                            String key = "key" + random.nextInt(32);
+                            if (random.nextInt(4) == 0) {
+                                cache.put(key, newEntry(key, i, 500 + random.nextInt(3000)));
+                            } else {
+                                Entry entry = cache.get(key);
+                                if (entry != null) {
+                                    assertConsistent(entry, key);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private SegmentLogCache newCache(int segmentSize) {
+        SegmentLogCache cache = new SegmentLogCache(mRoot, 1024 * 1024, segmentSize);
+        cache.initialize();
+        return cache;
+    }
+}
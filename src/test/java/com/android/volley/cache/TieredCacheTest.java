@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import static com.android.volley.cache.DiskCacheTest.assertEntry;
+import static com.android.volley.cache.DiskCacheTest.newEntry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.cache.Cache.Entry;
+import com.android.volley.cache.TieredCache.WriteMode;
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TieredCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /** When set, second level puts wait for it before writing. */
+    private volatile CountDownLatch mPutGate;
+
+    /** When set, second level gets wait for it after reading. */
+    private volatile CountDownLatch mGetGate;
+
+    /** Counted down when a second level put or get starts waiting at its gate. */
+    private final CountDownLatch mAtGate = new CountDownLatch(1);
+
+    private DiskCache mDisk;
+
+    @Before
+    public void setUp() throws Exception {
+        mDisk = new DiskCache(new File(mFolder.getRoot(), "cache")) {
+            @Override
+            public void put(String key, Entry entry) {
+                pass(mPutGate);
+                super.put(key, entry);
+            }
+
+            @Override
+            public Entry get(String key) {
+                Entry entry = super.get(key);
+                pass(mGetGate);
+                return entry;
+            }
+        };
+        mDisk.initialize();
+    }
+
+    @After
+    public void tearDown() {
+        open(mPutGate);
+        open(mGetGate);
+    }
+
+    @Test
+    public void readsDontWaitForSecondLevelWrites() throws Exception {
+        final TieredCache cache = new TieredCache(mDisk, 64 * 1024);
+        mDisk.put("b", newEntry("b", 1, 100));
+        mPutGate = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                cache.put("a", newEntry("a", 1, 100));
+            }
+        };
+        writer.start();
+        assertTrue(mAtGate.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch read = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                if (cache.get("a") != null && cache.get("b") != null) {
+                    read.countDown();
+                }
+            }
+        }.start();
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+
+        mPutGate.countDown();
+        writer.join(5000);
+        assertEntry(mDisk.get("a"), "a", 100);
+    }
+
+    @Test
+    public void readRacingRemoveIsNotKeptInMemory() throws Exception {
+        final TieredCache cache = new TieredCache(mDisk, 64 * 1024);
+        mDisk.put("key", newEntry("key", 1, 100));
+        mGetGate = new CountDownLatch(1);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                cache.get("key");
+            }
+        };
+        reader.start();
+        assertTrue(mAtGate.await(5, TimeUnit.SECONDS));
+
+        cache.remove("key");
+        mGetGate.countDown();
+        reader.join(5000);
+        mGetGate = null;
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void secondLevelEndsUpWithLastPut() throws Exception {
+        final TieredCache cache = new TieredCache(mDisk, 64 * 1024);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 500; i++) {
+                            String key = "key" + random.nextInt(4);
+                            cache.put(key, newEntry(key, seed * 1000 + i, 100));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        for (int i = 0; i < 4; i++) {
+            Entry inMemory = cache.get("key" + i);
+            Entry onDisk = mDisk.get("key" + i);
+            assertEquals(inMemory.data[4], onDisk.data[4]);
+        }
+    }
+
+    @Test
+    public void evictedDirtyEntriesAreWrittenBack() {
+        TieredCache cache = new TieredCache(mDisk, 4 * 1024, WriteMode.WRITE_BACK);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, newEntry("key" + i, i, 1000));
+        }
+        // Only the entries that no longer fit in memory were written so far.
+        assertEntry(mDisk.get("key0"), "key0", 1000);
+        assertNull(mDisk.get("key9"));
+
+        long expireTime = System.currentTimeMillis() + 60 * 1000;
+        cache.invalidate("key9", expireTime);
+        cache.flush();
+        for (int i = 0; i < 10; i++) {
+            assertEntry(mDisk.get("key" + i), "key" + i, 1000);
+            assertEntry(cache.get("key" + i), "key" + i, 1000);
+        }
+        assertEquals(expireTime, mDisk.get("key9").expireTime);
+    }
+
+    private void pass(CountDownLatch gate) {
+        if (gate == null) {
+            return;
+        }
+        mAtGate.countDown();
+        try {
+            assertTrue(gate.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void open(CountDownLatch gate) {
+        if (gate != null) {
+            gate.countDown();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+public class TinyLfuEvictionPolicyTest {
+
+    @Test
+    public void nextVictimIsIdempotent() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy(100);
+        for (int i = 0; i < 50; i++) {
+            policy.onInsert("key" + i, 1);
+        }
+        for (int i = 0; i < 10; i++) {
+            String victim = policy.nextVictim();
+            assertEquals(victim, policy.nextVictim());
+            assertEquals(victim, policy.nextVictim());
+            policy.onRemove(victim);
+        }
+    }
+
+    @Test
+    public void frequentKeysSurviveScan() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy(100);
+        Set<String> resident = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            insert(policy, resident, "hot" + i);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100; i++) {
+                policy.onAccess("hot" + i);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            insert(policy, resident, "cold" + i);
+        }
+        int hot = 0;
+        for (String key : resident) {
+            if (key.startsWith("hot")) {
+                hot++;
+            }
+        }
+        // LRU would keep none. Not all, as the sketch sized for 100 keys has seen many
+        // more and overestimates some cold keys.
+        assertTrue("only " + hot + " hot keys left", hot >= 60);
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy(100);
+        policy.onInsert("key", 1);
+        policy.clear();
+        assertNull(policy.nextVictim());
+    }
+
+    /** Inserts a key into a cache holding at most 100 keys. */
+    private static void insert(EvictionPolicy policy, Set<String> resident, String key) {
+        resident.add(key);
+        policy.onInsert(key, 1);
+        while (resident.size() > 100) {
+            String victim = policy.nextVictim();
+            assertTrue(resident.remove(victim));
+            policy.onRemove(victim);
+        }
+    }
+}
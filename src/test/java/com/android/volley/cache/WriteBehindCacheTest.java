@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.cache;
+
+import static com.android.volley.cache.DiskCacheTest.assertEntry;
+import static com.android.volley.cache.DiskCacheTest.newEntry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteBehindCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /** Holds back every change to the wrapped cache while closed. */
+    private volatile CountDownLatch mGate = new CountDownLatch(1);
+
+    /** When set, every change to the wrapped cache takes a permit instead. */
+    private volatile Semaphore mPermits;
+
+    private DiskCache mDisk;
+    private WriteBehindCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDisk = new DiskCache(new File(mFolder.getRoot(), "cache")) {
+            @Override
+            public void put(String key, Entry entry) {
+                pass();
+                super.put(key, entry);
+            }
+
+            @Override
+            public void invalidate(String key, long expireTime) {
+                pass();
+                super.invalidate(key, expireTime);
+            }
+
+            @Override
+            public void remove(String key) {
+                pass();
+                super.remove(key);
+            }
+        };
+        mDisk.initialize();
+        mCache = new WriteBehindCache(mDisk);
+    }
+
+    @After
+    public void tearDown() {
+        mGate.countDown();
+        if (mPermits != null) {
+            mPermits.release(1000);
+        }
+    }
+
+    @Test
+    public void queuedPutIsReadBeforeItIsWritten() {
+        mCache.put("key", newEntry("key", 1, 100));
+        assertEntry(mCache.get("key"), "key", 100);
+        assertNull(mDisk.get("key"));
+
+        mGate.countDown();
+        mCache.flush();
+        assertEntry(mDisk.get("key"), "key", 100);
+    }
+
+    @Test
+    public void queuedInvalidationOfWrittenEntryIsSeen() {
+        writeThrough("key", 1, 100);
+        long expireTime = System.currentTimeMillis() + 60 * 1000;
+
+        mCache.invalidate("key", expireTime);
+        assertEquals(expireTime, mCache.get("key").expireTime);
+        assertEquals(Long.MAX_VALUE, mDisk.get("key").expireTime);
+
+        mGate.countDown();
+        mCache.flush();
+        assertEquals(expireTime, mCache.get("key").expireTime);
+        assertEquals(expireTime, mDisk.get("key").expireTime);
+    }
+
+    @Test
+    public void putAfterQueuedInvalidationWins() {
+        writeThrough("key", 1, 100);
+
+        mCache.invalidate("key", System.currentTimeMillis() + 60 * 1000);
+        mCache.put("key", newEntry("key", 2, 200));
+        assertEntry(mCache.get("key"), "key", 200);
+        assertEquals(Long.MAX_VALUE, mCache.get("key").expireTime);
+
+        mGate.countDown();
+        mCache.flush();
+        assertEntry(mCache.get("key"), "key", 200);
+        assertEquals(Long.MAX_VALUE, mCache.get("key").expireTime);
+    }
+
+    @Test
+    public void invalidationAfterQueuedRemoveKeepsKeyRemoved() {
+        writeThrough("key", 1, 100);
+
+        mCache.remove("key");
+        mCache.invalidate("key", System.currentTimeMillis() + 60 * 1000);
+        assertNull(mCache.get("key"));
+
+        mGate.countDown();
+        mCache.flush();
+        assertNull(mCache.get("key"));
+    }
+
+    @Test
+    public void invalidationWaitingForRoomSeesPutQueuedMeanwhile() throws Exception {
+        mPermits = new Semaphore(0);
+        mCache = new WriteBehindCache(mDisk, 1);
+        mCache.put("key", newEntry("key", 1, 100));
+        // Returns once the writer has taken the first put, leaving the queue full.
+        mCache.put("other", newEntry("other", 1, 100));
+
+        Thread put = new Thread() {
+            @Override
+            public void run() {
+                mCache.put("key", newEntry("key", 2, 200));
+            }
+        };
+        put.start();
+        Thread.sleep(50);
+        Thread invalidate = new Thread() {
+            @Override
+            public void run() {
+                mCache.invalidate("key", System.currentTimeMillis() + 60 * 1000);
+            }
+        };
+        invalidate.start();
+        Thread.sleep(50);
+
+        // Room for both once the first two changes are written; neither is applied yet.
+        mPermits.release(2);
+        put.join(5000);
+        invalidate.join(5000);
+        assertEntry(mCache.get("key"), "key", 200);
+    }
+
+    /**
+     * Writes an entry all the way to the wrapped cache, then closes the gate again.
+     */
+    private void writeThrough(String key, int version, int size) {
+        mGate.countDown();
+        mCache.put(key, newEntry(key, version, size));
+        mCache.flush();
+        mGate = new CountDownLatch(1);
+    }
+
+    private void pass() {
+        try {
+            Semaphore permits = mPermits;
+            if (permits != null) {
+                assertTrue(permits.tryAcquire(10, TimeUnit.SECONDS));
+                return;
+            }
+            assertTrue(mGate.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}